@@ -0,0 +1,219 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Deflate compression of files, on disk and over the wire.
+ * A compressed file on disk starts with a header, MAGIC and then the file's size as a long, followed by a raw deflate stream,
+ * so whether a file is compressed is always known from the file itself. Files that happen to start with MAGIC are always
+ * compressed, so that they can't be mistaken for compressed ones. Over the wire only the deflate stream is sent.
+ */
+final class Compression {
+
+    /** Token added to a STORE, REBALANCE_STORE or LOAD_DATA to say the file is sent as a deflate stream */
+    static final String DEFLATE = "deflate";
+    static final byte[] MAGIC = {'D', 'F', 'Z', 1};
+    static final int HEADER = MAGIC.length + Long.BYTES;
+    /** Bytes at the start of a file that are compressed to decide whether compressing the rest is worth it */
+    static final int SAMPLE = 64 * 1024;
+    /** Compressed size of the sample, as a share of its size, above which a file is left uncompressed */
+    static final double MAX_RATIO = 0.9;
+    private static final int LEVEL = Deflater.BEST_SPEED; //Compression has to keep up with the network
+    private static final int BUFFER = 64 * 1024;
+
+    private Compression() {}
+
+    private static boolean startsWithMagic(ByteBuffer buffer) {
+        if (buffer.remaining() < MAGIC.length) return false;
+        for (int i = 0; i < MAGIC.length; i++) if (buffer.get(buffer.position() + i) != MAGIC[i]) return false;
+        return true;
+    }
+
+    /**
+     * Whether deflating the sample makes it small enough to be worth it. Already compressed data (media, archives) isn't.
+     */
+    private static boolean worthCompressing(ByteBuffer sample) {
+        Deflater deflater = new Deflater(LEVEL, true);
+        try {
+            deflater.setInput(sample.duplicate());
+            deflater.finish();
+            long limit = (long) (sample.remaining() * MAX_RATIO);
+            byte[] out = new byte[BUFFER];
+            while (!deflater.finished()) {
+                deflater.deflate(out);
+                if (deflater.getBytesWritten() > limit) return false;
+            }
+            return true;
+        } finally { deflater.end(); }
+    }
+
+    private static ByteBuffer readHeader(FileChannel fc) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        while (header.hasRemaining() && fc.read(header, header.position()) >= 0);
+        return header.flip();
+    }
+
+    /**
+     * Whether a file on disk is compressed. The channel's position isn't changed.
+     */
+    static boolean isCompressed(FileChannel fc) throws IOException {
+        ByteBuffer header = readHeader(fc);
+        return header.remaining() == HEADER && startsWithMagic(header);
+    }
+
+    /**
+     * Size of the file's content, whether or not it is compressed on disk.
+     */
+    static long rawSize(File file) throws IOException {
+        try (FileChannel fc = new FileInputStream(file).getChannel()) {
+            ByteBuffer header = readHeader(fc);
+            return header.remaining() == HEADER && startsWithMagic(header) ? header.getLong(MAGIC.length) : fc.size();
+        }
+    }
+
+    /**
+     * Open a file on disk for reading its content, inflating it if it is compressed.
+     */
+    static InputStream open(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            if (!isCompressed(in.getChannel())) return in;
+            in.getChannel().position(HEADER);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        Inflater inflater = new Inflater(true);
+        return new InflaterInputStream(in, inflater, BUFFER) {
+            @Override
+            public void close() throws IOException {
+                try { super.close(); } finally { inflater.end(); }
+            }
+        };
+    }
+
+    /**
+     * Read a deflate stream sent over the wire. The stream given isn't closed, only the inflater.
+     */
+    static InputStream inflating(InputStream in) {
+        Inflater inflater = new Inflater(true);
+        return new InflaterInputStream(in, inflater, BUFFER) {
+            @Override
+            public void close() { inflater.end(); }
+        };
+    }
+
+    /**
+     * Send content as a deflate stream over the wire, without closing the stream it goes to.
+     * @return Number of bytes sent
+     */
+    static long deflate(InputStream in, OutputStream out) throws IOException {
+        Deflater deflater = new Deflater(LEVEL, true);
+        try {
+            DeflaterOutputStream deflating = new DeflaterOutputStream(out, deflater, BUFFER);
+            in.transferTo(deflating);
+            deflating.finish();
+            deflating.flush();
+            return deflater.getBytesWritten();
+        } finally { deflater.end(); }
+    }
+
+    /**
+     * Writes a file to disk, compressed if the file is big enough and its first SAMPLE bytes compress well
+     * (or it starts with MAGIC), and otherwise as it is.
+     */
+    static final class Writer implements WritableByteChannel {
+        private final WritableByteChannel out;
+        private final long size;
+        private final long minSize;
+        private ByteBuffer sample; //The start of the file, until it has been decided whether to compress it
+        private Deflater deflater;
+        private DeflaterOutputStream deflating;
+        private byte[] copy;
+        private boolean open = true;
+
+        /**
+         * @param out Where the file goes, closed with the writer
+         * @param size Size of the file's content
+         * @param minSize Smallest file to compress, or -1 to only compress files starting with MAGIC
+         */
+        Writer(WritableByteChannel out, long size, long minSize) {
+            this.out = out;
+            this.size = size;
+            this.minSize = minSize;
+            this.sample = ByteBuffer.allocate((int) Math.min(SAMPLE, size));
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int written = src.remaining();
+            if (sample != null) {
+                int take = Math.min(src.remaining(), sample.remaining());
+                sample.put(src.slice(src.position(), take));
+                src.position(src.position() + take);
+                if (!sample.hasRemaining()) decide();
+            }
+            if (src.hasRemaining()) writeOut(src);
+            return written;
+        }
+
+        private void decide() throws IOException {
+            ByteBuffer start = sample.flip();
+            sample = null;
+            if (startsWithMagic(start) || (minSize >= 0 && size >= minSize && worthCompressing(start))) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER).put(MAGIC).putLong(size).flip();
+                while (header.hasRemaining()) out.write(header);
+                deflater = new Deflater(LEVEL, true);
+                deflating = new DeflaterOutputStream(Channels.newOutputStream(out), deflater, BUFFER);
+            }
+            writeOut(start);
+        }
+
+        private void writeOut(ByteBuffer src) throws IOException {
+            if (deflating == null) {
+                while (src.hasRemaining()) out.write(src);
+                return;
+            }
+            if (src.hasArray()) {
+                deflating.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+                src.position(src.limit());
+                return;
+            }
+            if (copy == null) copy = new byte[BUFFER];
+            while (src.hasRemaining()) {
+                int length = Math.min(copy.length, src.remaining());
+                src.get(copy, 0, length);
+                deflating.write(copy, 0, length);
+            }
+        }
+
+        @Override
+        public boolean isOpen() { return open; }
+
+        /**
+         * Finish the file (writing the end of the deflate stream if compressing) and close it.
+         */
+        @Override
+        public void close() throws IOException {
+            if (!open) return;
+            open = false;
+            try {
+                if (sample != null) decide();
+                if (deflating != null) deflating.finish();
+            } finally {
+                if (deflater != null) deflater.end();
+                out.close();
+            }
+        }
+    }
+}
@@ -1,63 +1,188 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-abstract class ConnectionThread<E> extends Thread implements Closeable {
+/**
+ * A connection whose messages are read by a blocking reader task on the shared executor,
+ * or delivered by a SelectorLoop when it was created from a non-blocking channel.
+ * The executor uses virtual threads where the JVM supports them (Java 21+), otherwise a cached thread pool.
+ * Messages are lines of text, unless the connection has switched to Wire frames (only offered to reader tasks).
+ * Either way they are handed over already split into fields.
+ */
+abstract class ConnectionThread<E> implements Runnable, Closeable {
+        static final ExecutorService executor = createExecutor();
+
+        protected final String name;
         protected final Socket socket;
-        protected final BufferedReader bufferedReader;
+        protected BufferedReader bufferedReader;
         protected final PrintWriter printWriter;
+        private InputStream frameIn; //Set once the connection has switched to frames
+        private OutputStream frameOut;
+        private volatile boolean binary = false;
+        protected final SelectorLoop.LineChannel lineChannel;
         protected final E server;
 
         public ConnectionThread(Socket socket, String name, E e) throws IOException {
-            super(name);
+            this.name = name;
             Logger.info("Creating new thread: " + name, this);
             this.socket = socket;
             this.bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
             this.printWriter = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+            this.lineChannel = null;
             this.server = e;
-            this.start();
+            executor.execute(this);
         }
 
-        public ConnectionThread(Socket socket, String name, BufferedReader br, E e) throws IOException {
-            super(name);
+        /**
+         * Create a connection that has already agreed to use frames (or been refused, and carries on as text).
+         * @param in Stream the connection is read from, after the agreement
+         * @param binary Whether frames were agreed
+         */
+        public ConnectionThread(Socket socket, String name, InputStream in, boolean binary, E e) throws IOException {
+            this.name = name;
             this.socket = socket;
-            this.bufferedReader = br;
             this.printWriter = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+            this.lineChannel = null;
             this.server = e;
-            this.start();
+            if (binary) useFrames(in);
+            else this.bufferedReader = new BufferedReader(new InputStreamReader(in));
+            executor.execute(this);
+        }
+
+        /**
+         * Create a connection whose messages are delivered by a SelectorLoop rather than a reader task.
+         * @param channel Channel that the first message arrived on
+         * @param name Name of the connection
+         * @param e Server the connection belongs to
+         */
+        public ConnectionThread(SelectorLoop.LineChannel channel, String name, E e) {
+            this.name = name;
+            this.socket = channel.socket();
+            this.bufferedReader = null;
+            this.printWriter = null;
+            this.lineChannel = channel;
+            this.server = e;
+            channel.attach(this);
+        }
+
+        /**
+         * Run a task on the shared executor, naming the thread it runs on for the logs.
+         * @param name Name of the task
+         * @param task Task to run
+         */
+        static void execute(String name, Runnable task) {
+            executor.execute(() -> {
+                Thread.currentThread().setName(name);
+                task.run();
+            });
+        }
+
+        private static ExecutorService createExecutor() {
+            try { return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null); }
+            catch (ReflectiveOperationException e) { return Executors.newCachedThreadPool(); }
         }
 
         @Override
         public void run() {
+            Thread.currentThread().setName(name);
             String currLine = "";
             Logger.info("Thread started successfully", this);
             try {
-                while ((currLine = bufferedReader.readLine()) != null) {
-                    Logger.info("Message reveived: " + currLine, this);
-                    reveiveMessage(currLine);
+                while (!binary && (currLine = bufferedReader.readLine()) != null) {
+                    if (currLine.equals(Wire.HELLO)) { //The other side waits for this reply before sending frames
+                        printWriter.println(Wire.HELLO);
+                        useFrames(new BufferedInputStream(socket.getInputStream()));
+                    } else handleMessage(currLine);
                 }
+                String[] fields;
+                while (binary && (fields = Wire.read(frameIn)) != null) handleFields(fields);
                 //If the reader notices that the connection has closed
                 close();
-            } catch (IOException e) { close(); }
+            } catch (IOException e) {
+                Logger.info("Connection failed: " + e.getMessage(), this); //Including frames that break the protocol
+                close();
+            }
         }
 
-        abstract void reveiveMessage(String message);
+        private void useFrames(InputStream in) throws IOException {
+            frameIn = in;
+            frameOut = new BufferedOutputStream(socket.getOutputStream());
+            binary = true;
+            Logger.debug("Switched to binary frames", this);
+        }
+
+        void handleMessage(String message) {
+            if (Logger.isEnabled(Logger.Level.DEBUG)) Logger.debug("Message reveived: " + message, this);
+            if (message.equals(Wire.HELLO)) sendMessage("ERROR_BINARY_UNSUPPORTED"); //Only reached through a SelectorLoop
+            else reveiveMessage(message.split(" "));
+        }
+
+        void handleFields(String[] fields) {
+            if (Logger.isEnabled(Logger.Level.DEBUG)) Logger.debug("Message reveived: " + String.join(" ", fields), this);
+            reveiveMessage(fields);
+        }
 
+        /**
+         * Handle a message.
+         * @param segments The command followed by its arguments
+         */
+        abstract void reveiveMessage(String[] segments);
+
+        /**
+         * Send a message made of fields separated by spaces. Use sendFields for any that could contain spaces (such as file names).
+         */
         public void sendMessage(String message) {
-            Logger.info("Sending message: " + message, this);
-            printWriter.println(message); 
+            if (binary) {
+                sendFields(Arrays.asList(message.split(" ")));
+                return;
+            }
+            if (Logger.isEnabled(Logger.Level.DEBUG)) Logger.debug("Sending message: " + message, this);
+            if (lineChannel != null) lineChannel.send(message);
+            else printWriter.println(message); 
+        }
+
+        public void sendFields(String... fields) { sendFields(Arrays.asList(fields)); }
+
+        /**
+         * Send a message as separate fields, which are kept apart even if they contain spaces when sent as frames.
+         * @param fields The command followed by its arguments
+         */
+        public void sendFields(List<String> fields) {
+            if (!binary) {
+                sendMessage(String.join(" ", fields));
+                return;
+            }
+            if (Logger.isEnabled(Logger.Level.DEBUG)) Logger.debug("Sending message: " + String.join(" ", fields), this);
+            synchronized (frameOut) {
+                try {
+                    Wire.write(frameOut, fields);
+                    frameOut.flush();
+                } catch (IOException e) { Logger.err("Could not send message: " + fields.get(0), e, this); }
+            }
         }
 
         @Override
         public void close() {
             Logger.info("Closing socket", this);
+            if (lineChannel != null) {
+                lineChannel.close();
+                return;
+            }
             try {
                 printWriter.close();
-                bufferedReader.close();
+                if (bufferedReader != null) bufferedReader.close();
                 socket.close();
             } catch (Exception e) { Logger.err("Problem closing the streams", e, this); }
         }
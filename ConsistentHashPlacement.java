@@ -0,0 +1,84 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Consistent-hashing placement. Each Dstore owns VIRTUAL_NODES points on a hash ring, and a file goes to the owners of
+ * the first distinct points clockwise from its own hash. Placing a file costs O(log V + R) with no shared state to contend on,
+ * concurrent stores of different files land on different Dstores, and a Dstore joining or leaving only changes the
+ * placement of about 1/D of the files. Dstores without room for a file are skipped, and only used if too few others have room.
+ * Rebalancing prefers the owners of a file on the ring too, so the files a joining Dstore is given are mostly the ones that
+ * now hash to it, and later stores and rebalances agree on where each file belongs.
+ * @param <D> Dstore identifier
+ */
+class ConsistentHashPlacement<D> implements PlacementStrategy<D> {
+    /** Points on the ring per Dstore, more evens out the share of files each one gets */
+    private static final int VIRTUAL_NODES = 128;
+
+    private final ConcurrentSkipListMap<Long, D> ring = new ConcurrentSkipListMap<>();
+    private final Function<D, String> key;
+    private final ToLongFunction<D> freeSpace;
+
+    /**
+     * @param key Stable name for a Dstore (so it gets the same points if it reconnects)
+     * @param freeSpace Bytes a Dstore has left
+     */
+    public ConsistentHashPlacement(Function<D, String> key, ToLongFunction<D> freeSpace) {
+        this.key = key;
+        this.freeSpace = freeSpace;
+    }
+
+    @Override
+    public void addDstore(D dStore) {
+        for (int i = 0; i < VIRTUAL_NODES; i++) ring.put(hash(key.apply(dStore) + "#" + i), dStore);
+    }
+
+    @Override
+    public void removeDstore(D dStore) {
+        for (int i = 0; i < VIRTUAL_NODES; i++) ring.remove(hash(key.apply(dStore) + "#" + i), dStore);
+    }
+
+    @Override
+    public List<D> place(String fileName, long size, int replicas) {
+        LinkedHashSet<D> chosen = new LinkedHashSet<>(), full = new LinkedHashSet<>();
+        long start = hash(fileName);
+        walk(ring.tailMap(start).entrySet().iterator(), chosen, full, size, replicas);
+        walk(ring.headMap(start).entrySet().iterator(), chosen, full, size, replicas); //Wrap around
+        for (Iterator<D> it = full.iterator(); chosen.size() < replicas && it.hasNext();) chosen.add(it.next());
+        return new ArrayList<>(chosen);
+    }
+
+    @Override
+    public List<D> owners(String fileName, int replicas) {
+        return place(fileName, Long.MIN_VALUE, replicas); //Every Dstore has room for a file that small
+    }
+
+    private void walk(Iterator<Map.Entry<Long, D>> points, LinkedHashSet<D> chosen, LinkedHashSet<D> full, long size, int replicas) {
+        while (chosen.size() < replicas && points.hasNext()) {
+            D dStore = points.next().getValue();
+            if (chosen.contains(dStore) || full.contains(dStore)) continue;
+            if (freeSpace.applyAsLong(dStore) >= size) chosen.add(dStore);
+            else full.add(dStore);
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a, finished with the SplitMix64 mixer so that similar names land far apart.
+     */
+    private static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+}
@@ -1,40 +1,64 @@
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Set;
 import java.util.stream.Collectors;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.function.Function;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 class Controller {
-    private final HashMap<String, CountDownLatch> expectedStoreAcks = new HashMap<>();
-    private final HashMap<String, CountDownLatch> expectedRemoveAcks = new HashMap<>();
+    private final ConcurrentHashMap<String, CountDownLatch> expectedStoreAcks = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CountDownLatch> expectedRemoveAcks = new ConcurrentHashMap<>();
     
     private CountDownLatch expectedRebalanceAcks = new CountDownLatch(0);
     private CountDownLatch expectedLists = new CountDownLatch(0);
-    private HashMap<DstoreCon, ArrayList<String>> dStoreLists = new HashMap<>();
     
     private final FileIndex index = new FileIndex();
     private final ArrayList<ClientConnection> clients = new ArrayList<>();
     private final ReentrantLock rebalLock = new ReentrantLock();
+    private final Object throttleLock = new Object(); //Taken instead of rebalLock to change the rate, so it can change mid-rebalance
+    private final AtomicLong throttles = new AtomicLong(); //Bumped on every THROTTLE, so a rebalance knows to recompute its wait
+    private final HashMap<String, Set<DstoreCon>> fencedFiles = new HashMap<>(); //Files being moved by a rebalance -> Dstores that will remove them
     private final ScheduledThreadPoolExecutor rebalScheduler = new ScheduledThreadPoolExecutor(1);
+    /** Most files in a page of a paged LIST */
+    private static final int MAX_LIST_PAGE = 10000;
     
     private int replicationFactor, timeout, cport, rebalance_period;
+    private long chunkSize;
+    private volatile long rebalanceRate; //Bytes per second each Dstore's rebalance sends are limited to, 0 for no limit, -1 to leave each Dstore's own
+    private boolean useSelector;
+    private PlacementStrategy<DstoreCon> placement;
 
     public static void main(String[] args) {
-        if (args.length != 4) System.out.println("Arguments should be formatted like so:\nController cport R timeout rebalance_period");
-        new Controller(args[0], args[1], args[2], args[3]);
+        if (args.length != 4 && args.length != 5) System.out.println("Arguments should be formatted like so:\nController cport R timeout rebalance_period [threaded|selector]");
+        new Controller(args[0], args[1], args[2], args[3], args.length > 4 ? args[4] : "threaded");
+    }
+
+    public Controller(String cportStr, String replicationFactorStr, String timeoutStr, String rebalance_periodStr) {
+        this(cportStr, replicationFactorStr, timeoutStr, rebalance_periodStr, "threaded");
     }
 
     /**
@@ -44,8 +68,9 @@ class Controller {
      * @param replicationFactorStr replication factor
      * @param timeoutStr timeout (for Dstores to ack messages)
      * @param rebalance_periodStr Time between rebalances
+     * @param frontEnd "threaded" for a blocking reader thread per connection, "selector" for a single non-blocking SelectorLoop
      */
-    public Controller(String cportStr, String replicationFactorStr, String timeoutStr, String rebalance_periodStr) {
+    public Controller(String cportStr, String replicationFactorStr, String timeoutStr, String rebalance_periodStr, String frontEnd) {
         Logger.clearLogs();
         Logger.info("Creating new Controller", this);
         try { //Parse everything into integers
@@ -53,18 +78,44 @@ class Controller {
             replicationFactor = Integer.parseInt(replicationFactorStr);
             timeout = Integer.parseInt(timeoutStr);
             rebalance_period = Integer.parseInt(rebalance_periodStr);
-            if (cport < 1025 || cport > 65535 || replicationFactor < 1 || timeout < 0 || rebalance_period < 0) throw new Exception("An argument was out of the valid range");
+            if (!frontEnd.equals("threaded") && !frontEnd.equals("selector")) throw new Exception("Unknown front end: " + frontEnd);
+            useSelector = frontEnd.equals("selector");
+            chunkSize = Long.getLong("controller.chunkSize", 8L << 20); //Size of the chunks STORE_CHUNKS splits files into (-Dcontroller.chunkSize=bytes)
+            rebalanceRate = Long.getLong("controller.rebalanceRate", -1); //Set on every Dstore as it JOINs (-Dcontroller.rebalanceRate=bytes/s)
+            if (cport < 1025 || cport > 65535 || replicationFactor < 1 || timeout < 0 || rebalance_period < 0 || chunkSize < 1 || rebalanceRate < -1) throw new Exception("An argument was out of the valid range");
+            //Where new files are stored (-Dcontroller.placement=hash|least-used)
+            String placementName = System.getProperty("controller.placement", "hash");
+            if (placementName.equals("hash")) placement = new ConsistentHashPlacement<>(x -> Integer.toString(x.getPort()), DstoreCon::getFreeSpace);
+            else if (placementName.equals("least-used")) placement = new LeastUsedPlacement();
+            else throw new Exception("Unknown placement: " + placementName);
         } catch (Exception e) {
             Logger.err("Command line argument was malformed", e, this);
             return;
         }
 
-        //Create the ServerSocket and listen for connections, and start rebalancing.
-        
-        try (ServerSocket serverSocket = new ServerSocket(cport);) {
-            rebalScheduler.schedule(() -> rebalance(), rebalance_period, TimeUnit.SECONDS);
-            while(true) handleNewConnection(serverSocket.accept());
-        } catch (Exception e) { Logger.err("Exception was thrown. The server socket was closed", e, this); }
+        //Recover the index if it is being persisted (-Dcontroller.metadata=folder)
+        String metadataFolder = System.getProperty("controller.metadata");
+        if (metadataFolder != null) {
+            try { index.open(new File(metadataFolder)); }
+            catch (Exception e) {
+                Logger.err("Could not recover the index from: " + metadataFolder, e, this);
+                return;
+            }
+        }
+
+        //Create the ServerSocket (or SelectorLoop) and listen for connections, and start rebalancing.
+        if (useSelector) {
+            try {
+                SelectorLoop selectorLoop = new SelectorLoop(cport, this::handleFirstMessage);
+                rebalScheduler.schedule(() -> rebalance(), rebalance_period, TimeUnit.SECONDS);
+                selectorLoop.run();
+            } catch (Exception e) { Logger.err("Exception was thrown. The selector loop was closed", e, this); }
+        } else {
+            try (ServerSocket serverSocket = new ServerSocket(cport);) {
+                rebalScheduler.schedule(() -> rebalance(), rebalance_period, TimeUnit.SECONDS);
+                while(true) handleNewConnection(serverSocket.accept());
+            } catch (Exception e) { Logger.err("Exception was thrown. The server socket was closed", e, this); }
+        }
 
         Logger.info("Shutting down executor service", this);
     }
@@ -73,7 +124,7 @@ class Controller {
      * In charge of getting an releasing locks either side of sendAndReceiveRebals
      */
     private void rebalance() {
-        new Thread(() -> {
+        ConnectionThread.execute("Rebalance", () -> {
             rebalLock.lock();
             rebalScheduler.getQueue().clear();
             Logger.info("Rebalancing", this);
@@ -85,166 +136,191 @@ class Controller {
                 return; 
             }
 
-            CountDownLatch clientLatch = new CountDownLatch(clients.size());
-            for (ClientConnection client : clients) {
-                new Thread(() -> {
-                    try {
-                        if (client.lock.isLocked()) Logger.info("Waiting for a process to finish", this);
-                        client.lock();
-                        clientLatch.countDown();
-                        synchronized (clients) { clients.wait(); }
-                        client.unlock();
-                    } catch (Exception e) { Logger.err("Error trying to keep client locked", e, this); }
-                }, "Client lock holder").start();
-            }
-            try {
-                if (clientLatch.await(timeout, TimeUnit.MILLISECONDS)) {
-                    synchronized (index) { sendAndReceiveRebalances(); }
-                } 
-                else throw new Exception("Could not get all client locks in time");
-            } catch (Exception e) { Logger.err("Rebalance could not be completed", e, this); }
-            
-            //Unlock the clients again when rebalancing is done
+            //Clients carry on as normal, only requests for the files being moved wait (see fencedFiles)
+            try { sendAndReceiveRebalances(); }
+            catch (Exception e) { Logger.err("Rebalance could not be completed", e, this); }
+
             rebalScheduler.schedule(() -> rebalance(), rebalance_period, TimeUnit.SECONDS);
             rebalLock.unlock();
-            synchronized (clients) { clients.notifyAll(); }
-            
-        }, "Rebalance").start();
+        });
     }
 
     /**
-     * Send and receive lists and rebalances
+     * Bring the Controller's view of each Dstore up to date, then rebalance only what has changed since the last rebalance:
+     * files that were stored, removed or reported differently by a Dstore, and files on Dstores that left.
      * @throws Exception If anything fails
      */
     private void sendAndReceiveRebalances() throws Exception {
-        //Client locks aquired, request lists from Dstores.
+        //Ask each Dstore for its changes since it was last asked.
+        //Their replies include everything behind index changes made before this point, later ones wait for the next rebalance.
+        long stamp = index.getChangeStamp();
         ArrayList<DstoreCon> currStores = new ArrayList<>(index.getDStoreSet());
-        dStoreLists = new HashMap<>();
-        Set<String> fileSet = index.getFileSet().stream().filter(x -> index.getFileStatus(x).equals("store complete")).collect(Collectors.toSet());
+        expectedLists = new CountDownLatch(currStores.size()); //Created before sending so that fast replies aren't dropped
+        for (DstoreCon dStore : currStores) dStore.requestChanges();
+        if (!expectedLists.await(timeout, TimeUnit.MILLISECONDS)) throw new Exception("Not all Dstores replied with their changes " + expectedLists.getCount());
 
-        for (DstoreCon dStore : currStores) dStore.sendMessage("LIST");
-        (expectedLists = new CountDownLatch(currStores.size())).await(timeout, TimeUnit.MILLISECONDS);
+        Map<String, Long> dirty = index.takeDirtyFiles();
+        try { planAndSendRebalances(currStores, dirty, stamp); }
+        catch (Exception e) {
+            index.markDirty(dirty.keySet()); //Try them again next time
+            throw e;
+        }
+    }
 
-        index.getFileSet().stream().forEach(e -> { if (!dStoreLists.values().stream().anyMatch(x -> x.contains(e))) index.removeFile(e); });
-        
-        //Remove any files that aren't in the index
-        ConcurrentHashMap<DstoreCon, ArrayList<String>> fileRemoves = new ConcurrentHashMap<>();
-        ConcurrentHashMap<DstoreCon, ArrayList<String>> fileAdditions = new ConcurrentHashMap<>();
-        for (DstoreCon dStore : dStoreLists.keySet()) {
-            fileRemoves.put(dStore, new ArrayList<String>());
-            fileAdditions.put(dStore, new ArrayList<String>());
-            for (String listedFile : dStoreLists.get(dStore)) {
-                if (!fileSet.contains(listedFile)) fileRemoves.get(dStore).add(listedFile);
+    /**
+     * Work out and send the REBALANCE messages for the changed files, plus any moves needed to even out the Dstores.
+     * @param dStores Dstores taking part
+     * @param dirty Files that have changed since the last rebalance, with the stamp of their latest change
+     * @param stamp Index change stamp from before the Dstores were asked for their changes
+     * @throws Exception If the files couldn't be replicated R times, or not all Dstores completed the rebalance
+     */
+    private void planAndSendRebalances(ArrayList<DstoreCon> dStores, Map<String, Long> dirty, long stamp) throws Exception {
+        ArrayList<String> toReplicate = new ArrayList<>(), toRemove = new ArrayList<>(), deferred = new ArrayList<>();
+        HashSet<String> filesToDrop = new HashSet<>(); //Removed from the index once the rebalance completes
+        HashSet<String> repairs = new HashSet<>(); //Files with fewer than R replicas, sent ahead of balancing moves
+        RebalancePlanner.Plan<DstoreCon> plan;
+        //Stores and removes can't start while planning, and wait for any files fenced here until the rebalance is over
+        synchronized (fencedFiles) {
+            for (String file : dirty.keySet()) {
+                if (index.getChunkSize(file) != null) continue; //Only its chunks are held by Dstores
+                long holders = dStores.stream().filter(x -> x.holds(file)).count();
+                boolean held = holders > 0;
+                String status = index.getFileStatus(file); //Read before the stamps, which are always changed first
+                if (dirty.get(file) > stamp || index.changedSince(file, stamp)) deferred.add(file); //The Dstores' replies may not show it yet
+                else if (status == null) { if (held) toRemove.add(file); } //Left behind by a failed store or remove
+                else if (!status.equals("store complete")) deferred.add(file); //Still being stored or removed, leave it to them
+                else if (held) {
+                    toReplicate.add(file);
+                    if (holders < replicationFactor) repairs.add(file);
+                }
+                //Files only held by Dstores that haven't re-JOINed since a restart are left alone until they do
+                else if (!index.hasPendingReplicas(file)) filesToDrop.add(file);
             }
-        }
 
-        //Make sure each file should be in the Dstores R times
-        for (String file : fileSet) {
-            ArrayList<DstoreCon> currentDstores = new ArrayList<>(dStoreLists.keySet().stream().filter(x -> dStoreLists.get(x).contains(file)).toList());
-            currentDstores.sort(Comparator.comparing(x -> dStoreLists.get(x).size()).reversed());
-            Integer dStoresNeeded = replicationFactor-currentDstores.size();
-            if (dStoresNeeded == 0) continue;
-            //Gets Dstore list sorted to attempt to fill up the most empty Dstores first
-            for (DstoreCon newStore : dStoreLists.keySet()) { //Has been sorted
-                if (dStoresNeeded <= 0) break;
-                if (currentDstores.contains(newStore)) continue;
-                fileAdditions.get(newStore).add(file);
-                dStoresNeeded--;
+            HashMap<DstoreCon, Set<String>> assignment = new HashMap<>();
+            HashMap<DstoreCon, Long> bytes = new HashMap<>(), capacities = new HashMap<>();
+            long fallbackCapacity = defaultCapacity(dStores);
+            for (DstoreCon dStore : dStores) {
+                assignment.put(dStore, dStore.getListedFiles());
+                bytes.put(dStore, dStore.getListedBytes());
+                capacities.put(dStore, dStore.getCapacity() > 0 ? dStore.getCapacity() : fallbackCapacity);
             }
-            for (DstoreCon newStore : currentDstores) { //Ordered by largest amount of files first
-                if (dStoresNeeded >= 0) break;
-                fileRemoves.get(newStore).add(file);
-                dStoresNeeded++;
+            plan = RebalancePlanner.plan(assignment, bytes, capacities, this::sizeOf, replicationFactor, toReplicate, toRemove, x -> placement.owners(x, replicationFactor));
+
+            for (String file : plan.placements().keySet()) fencedFiles.put(file, new HashSet<>());
+            plan.removals().forEach((dStore, files) -> { for (String file : files) fencedFiles.get(file).add(dStore); });
+        }
+        index.markDirty(deferred);
+        try { sendRebalances(dStores, plan, filesToDrop, repairs); }
+        finally {
+            synchronized (fencedFiles) {
+                fencedFiles.keySet().removeAll(plan.placements().keySet());
+                fencedFiles.notifyAll();
             }
-            if (dStoresNeeded != 0) throw new Exception("Could not ensure all files were replicated R times - less than R dstores LISTed");
         }
+    }
+
+    /**
+     * Capacity assumed for Dstores that haven't sent a STATUS yet: the largest one reported, so they aren't overfilled or ignored.
+     */
+    private static long defaultCapacity(Collection<DstoreCon> dStores) {
+        long capacity = dStores.stream().mapToLong(DstoreCon::getCapacity).max().orElse(0);
+        return capacity > 0 ? capacity : 1L << 50;
+    }
 
-        float filesPerDstore = (float)(replicationFactor * fileSet.size()) / (float)dStoreLists.size();
-        HashMap<DstoreCon, Float> fileRebalanceNum = new HashMap<>();
-        float totalRebalDiff = 0;
+    private long sizeOf(String fileName) {
+        Long size = index.getFileSize(fileName);
+        return size == null ? 0 : size;
+    }
 
-        //Update dStoreLists (before reshuffle)
-        for (DstoreCon dStore : fileRemoves.keySet()) dStoreLists.get(dStore).removeAll(fileRemoves.get(dStore));
-        for (DstoreCon dStore : fileAdditions.keySet()) dStoreLists.get(dStore).addAll(fileAdditions.get(dStore));
-        
-        //Check that the total amount of files per Dstore adds up (aka totalRebalFactor == 0) and how many each Dstore needs.
-        for (DstoreCon dStore : dStoreLists.keySet()) {
-            float rebalanceFactor = filesPerDstore - dStoreLists.get(dStore).size();
-            fileRebalanceNum.put(dStore, rebalanceFactor);
-            totalRebalDiff += rebalanceFactor;
-        }
-        if (Math.abs(totalRebalDiff) > 1.0) throw new Exception("Total rebalance factor doesn't add up: " + totalRebalDiff);
-
-        //Now that all Files that shouldn't exist have been removed, and we know how many files each Dstore needs
-        boolean changed = true;
-        while (true) {
-            if (!changed) throw new Exception("Nothing changed in the last loop. Incorrect configuration of dStoreLists");
-            changed = false;
-            
-            if (!fileRebalanceNum.values().stream().map(x -> (Math.abs(x) < 1)).toList().contains(false)) break;
-            Comparator<DstoreCon> sort = Comparator.comparing(fileRebalanceNum::get);
-            ArrayList<DstoreCon> dStores = new ArrayList<>(fileRebalanceNum.keySet().stream().sorted(sort).toList());
-            DstoreCon needsRemove = dStores.get(0);
-            DstoreCon needsFile = dStores.get(dStores.size()-1);
-            String removedFile = null;
-
-            //Find a file from the "bigger" Dstore to send to the "smaller"
-            for (String file : dStoreLists.get(needsRemove)) {
-                if (dStoreLists.get(needsFile).contains(file)) continue;
-                fileAdditions.get(needsFile).add(file);
-                dStoreLists.get(needsFile).add(file);
-                float needsNum = fileRebalanceNum.get(needsFile);
-                fileRebalanceNum.put(needsFile, needsNum-1);
-
-                fileRemoves.get(needsRemove).add(file);
-                removedFile = file;
-                float removesNum = fileRebalanceNum.get(needsRemove);
-                fileRebalanceNum.put(needsRemove, removesNum+1);
-                changed = true;
-                break;
-            }
-            if (removedFile == null) throw new Exception("Could not find a suitable file to send from a \"larger\" Dstore to a \"smaller\" one");
-            dStoreLists.get(needsRemove).remove(removedFile);
-        }
-
-        //Craft messages for each of the Dstores
-        int expectedAckNum = dStoreLists.keySet().size();
-        for (DstoreCon dStore : dStoreLists.keySet()) {
-            HashMap<String, ArrayList<Integer>> filesToSendMap = new HashMap<>();
-            for (DstoreCon storeThatNeeds : fileAdditions.keySet()) {
-                Function<String, Boolean> inOriginalList = x -> dStoreLists.get(dStore).contains(x) && !fileAdditions.get(dStore).contains(x);
-                for (String file : fileAdditions.get(storeThatNeeds)) {
-                    if (inOriginalList.apply(file)) { //If there is a Dstore that needs a file, and this one had that file at time of List, add it to the map.
-                        ArrayList<Integer> a = new ArrayList<>();
-                        a.add(storeThatNeeds.getPort());
-                        if (filesToSendMap.get(file) == null) filesToSendMap.put(file, a);
-                        else filesToSendMap.get(file).add(storeThatNeeds.getPort());
-                    }
-                } //Remove any files that were added to this send list.
-                fileAdditions.put(storeThatNeeds, new ArrayList<>(fileAdditions.get(storeThatNeeds).stream().filter(x -> !inOriginalList.apply(x)).toList())); 
-            }
-            if (filesToSendMap.size() == 0 && fileRemoves.get(dStore).size() == 0) {
-                expectedAckNum--;
-                continue;
-            }
-            ArrayList<String> filesToSendStrings = new ArrayList<>();
-            for (String file :  filesToSendMap.keySet()) {
-                filesToSendStrings.add(file);
-                filesToSendStrings.add("" + filesToSendMap.get(file).size());
-                filesToSendStrings.addAll(filesToSendMap.get(file).stream().map(x -> "" + x).toList());
+    /**
+     * Send the REBALANCE messages for a plan and, once every Dstore has completed them, update the index to match.
+     * @param dStores Dstores taking part
+     * @param plan Planned moves
+     * @param filesToDrop Files to remove from the index
+     * @param repairs Files that are short of replicas, which are listed first in a REBALANCE and counted at its end (for Dstores that read the count)
+     * @throws Exception If not all Dstores completed the rebalance
+     */
+    private void sendRebalances(ArrayList<DstoreCon> dStores, RebalancePlanner.Plan<DstoreCon> plan, Set<String> filesToDrop, Set<String> repairs) throws Exception {
+
+        HashMap<DstoreCon, List<String>> rebalanceMessages = new HashMap<>();
+        HashMap<DstoreCon, Long> bytesToSend = new HashMap<>();
+        for (DstoreCon dStore : dStores) {
+            Map<String, List<DstoreCon>> filesToSendMap = plan.sends().getOrDefault(dStore, Map.of());
+            Set<String> fileRemoves = plan.removals().getOrDefault(dStore, Set.of());
+            if (filesToSendMap.isEmpty() && fileRemoves.isEmpty()) continue;
+            ArrayList<String> filesToSend = new ArrayList<>(filesToSendMap.keySet());
+            filesToSend.sort(Comparator.comparing(file -> !repairs.contains(file)));
+            //"REBALANCE *files_to_send* *file* *ports_to_send_to* *port* ... *files_to_remove* *file* ... [*repairs*]"
+            ArrayList<String> message = new ArrayList<>();
+            message.add("REBALANCE");
+            message.add(Integer.toString(filesToSend.size()));
+            long bytes = 0;
+            for (String file : filesToSend) {
+                message.add(file);
+                message.add(Integer.toString(filesToSendMap.get(file).size()));
+                for (DstoreCon target : filesToSendMap.get(file)) message.add(Integer.toString(target.getPort()));
+                bytes += sizeOf(file) * filesToSendMap.get(file).size();
             }
-            String filesToSend = filesToSendMap.size() + " " + filesToSendStrings.stream().collect(Collectors.joining(" "));
-            String filesToRemove = fileRemoves.get(dStore).size() + " " + fileRemoves.get(dStore).stream().collect(Collectors.joining(" "));
-            if (filesToSendMap.size() == 0) filesToSend = "0";
-            if (fileRemoves.get(dStore).size() == 0) filesToRemove = "0";
-            dStore.sendMessage("REBALANCE " + filesToSend + " " + filesToRemove);
-        }
-        expectedRebalanceAcks = new CountDownLatch(expectedAckNum);
-        boolean replies = expectedRebalanceAcks.await(timeout, TimeUnit.MILLISECONDS);
-        if (!replies) throw new Exception("Not all Dstores REBALANCE_ACKed " + expectedRebalanceAcks.getCount());
-
-        Logger.info("Rebalance successful", this);
-        index.updateAll(dStoreLists);
+            message.add(Integer.toString(fileRemoves.size()));
+            message.addAll(fileRemoves);
+            if (dStore.sendsRepairsFirst()) message.add(Long.toString(filesToSend.stream().filter(repairs::contains).count()));
+            rebalanceMessages.put(dStore, message);
+            bytesToSend.put(dStore, bytes);
+        }
+
+        expectedRebalanceAcks = new CountDownLatch(rebalanceMessages.size());
+        long seenThrottles = throttles.get();
+        long deadline = System.currentTimeMillis() + rebalanceWait(bytesToSend);
+        rebalanceMessages.forEach(DstoreCon::sendFields);
+        while (!expectedRebalanceAcks.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+            //A THROTTLE part way through gives the sends as long as all of them would take at the new rate from now
+            if (throttles.get() == seenThrottles) throw new Exception("Not all Dstores REBALANCE_ACKed " + expectedRebalanceAcks.getCount());
+            seenThrottles = throttles.get();
+            deadline = Math.max(deadline, System.currentTimeMillis() + rebalanceWait(bytesToSend));
+        }
+
+        Logger.info("Rebalance successful, " + rebalanceMessages.size() + " Dstores changed", this);
+        for (String file : filesToDrop) {
+            String owner = index.getChunkOwner(file);
+            index.removeFile(owner != null ? owner : file); //A file that has lost a chunk is lost with it
+        }
+        plan.placements().forEach((file, dStoresHolding) -> { if (!filesToDrop.contains(file)) index.setFileDstores(file, dStoresHolding); });
+    }
+
+    /**
+     * How long to wait for REBALANCE_COMPLETEs. A rate limited Dstore is given as long as its sends take at that rate,
+     * on top of the timeout.
+     * @param bytesToSend Dstore -> bytes it sends
+     */
+    private long rebalanceWait(Map<DstoreCon, Long> bytesToSend) {
+        long wait = timeout;
+        for (Map.Entry<DstoreCon, Long> sends : bytesToSend.entrySet()) {
+            long rate = sends.getKey().getRebalanceRate();
+            if (rate > 0) wait = Math.max(wait, timeout + sends.getValue() * 1000 / rate);
+        }
+        return wait;
+    }
+
+    /**
+     * Handle "THROTTLE *bytes_per_second*" from a client, which limits the rate every Dstore sends files at in rebalances
+     * (0 for no limit), straight away and for Dstores that JOIN later. Replies THROTTLE_COMPLETE once it has been sent to them.
+     * Client loads and stores are never limited.
+     * @param segments Message the client sent
+     * @param client Client that requested
+     */
+    public void requestThrottle(String[] segments, ClientRequest client) throws Exception {
+        long rate;
+        try { rate = Long.parseLong(segments[1]); }
+        catch (NumberFormatException e) { throw new Exception("ERROR_MALFORMED_THROTTLE " + segments[1]); }
+        if (rate < 0) throw new Exception("ERROR_MALFORMED_THROTTLE " + rate);
+        synchronized (throttleLock) { //So a Dstore JOINing now gets the new rate, without waiting for a rebalance under way
+            rebalanceRate = rate;
+            for (DstoreCon dStore : new ArrayList<>(index.getDStoreSet())) dStore.throttle(rate);
+            throttles.incrementAndGet();
+        }
+        Logger.info("Rebalance sends limited to " + (rate == 0 ? "no limit" : rate + " bytes/s"), this);
+        client.sendMessage("THROTTLE_COMPLETE");
     }
 
     /**
@@ -254,110 +330,320 @@ class Controller {
      * @param fileName Name of file being removed
      * @param client Client connection that requested the remove
      */
-    public void requestRemove(String fileName, ClientConnection client) throws Exception {
-            synchronized (expectedRemoveAcks) {
+    public void requestRemove(String fileName, ClientRequest client) throws Exception {
+            List<String> parts;
+            synchronized (fencedFiles) {
+                awaitUnfenced(index.getParts(fileName));
                 checkState(fileName, "store complete", false);
-                index.updateStatus(fileName, "remove in progress");
+                parts = index.getParts(fileName);
+                //Made durable once out of the monitor, so other requests don't wait for the log to reach disk
+                index.updateStatus(fileName, "remove in progress", false);
+                for (String part : parts) if (!part.equals(fileName)) index.updateStatus(part, "remove in progress", false);
             }
-            expectedRemoveAcks.put(fileName, new CountDownLatch(index.getFileDstores(fileName).size()));
-            for (DstoreCon dStore : index.getFileDstores(fileName)) dStore.sendMessage("REMOVE " + fileName);
-            try {if (expectedRemoveAcks.get(fileName).await(timeout, TimeUnit.MILLISECONDS)) {
-                    client.sendMessage("REMOVE_COMPLETE"); 
+            index.sync();
+            CountDownLatch acks = new CountDownLatch(parts.stream().mapToInt(x -> index.getFileDstores(x).size()).sum());
+            for (String part : parts) expectedRemoveAcks.put(part, acks);
+            for (String part : parts) for (DstoreCon dStore : index.getFileDstores(part)) dStore.sendFields("REMOVE", part);
+            try {if (acks.await(timeout, TimeUnit.MILLISECONDS)) {
                     index.removeFile(fileName);
+                    client.sendMessage("REMOVE_COMPLETE"); 
             }} catch (InterruptedException e) { }
     }
 
     /**
-     * Attempt to get a Dstore which has the requested filename
+     * Attempt to get a Dstore which has the requested filename.
+     * Of the replicas not tried yet, two are picked at random and the less loaded one is used (power of two choices),
+     * which spreads the loads of a popular file over all of its replicas without sorting them or herding onto one.
      * @param fileName Filename to be loaded
      * @param client Client which made the request
+     * @param lastAttempt Dstores already tried by the client (for RELOAD), the chosen one is added to it
      */
-    public ArrayList<DstoreCon> requestLoad(String fileName, ClientConnection client, ArrayList<DstoreCon> lastAttempt) throws Exception {
-        //Wait if there is currently a rebalance ongoing
+    public ArrayList<DstoreCon> requestLoad(String fileName, ClientRequest client, ArrayList<DstoreCon> lastAttempt) throws Exception {
         checkState(fileName, "store complete", true);
 
-        ArrayList<DstoreCon> dStores = index.getFileDstores(fileName);
-        if (dStores == null) throw new Exception("ERROR_LOAD");
+        ArrayList<DstoreCon> dStores = loadableDstores(fileName);
         dStores.removeAll(lastAttempt);
         if (dStores.size() == 0) throw new Exception("ERROR_LOAD");
-        Integer fileSize = index.getFileSize(fileName);
+        Long fileSize = index.getFileSize(fileName);
 
-        client.sendMessage("LOAD_FROM " + dStores.get(0).getPort() + " " + fileSize);
-        lastAttempt.add(dStores.get(0));
+        DstoreCon chosen = chooseReplica(dStores);
+        chosen.loadStarted();
+        client.sendMessage("LOAD_FROM " + chosen.getPort() + " " + fileSize);
+        lastAttempt.add(chosen);
         return lastAttempt;
     }
 
+    /**
+     * Pick the less loaded of two random Dstores.
+     * @param dStores Dstores to choose from, at least one
+     */
+    private DstoreCon chooseReplica(List<DstoreCon> dStores) {
+        if (dStores.size() == 1) return dStores.get(0);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(dStores.size()), second = random.nextInt(dStores.size() - 1);
+        DstoreCon a = dStores.get(first), b = dStores.get(second < first ? second : second + 1);
+        return Comparator.comparingDouble(DstoreCon::getLoadScore).thenComparingInt(DstoreCon::getLoadsInFlight).compare(a, b) <= 0 ? a : b;
+    }
+
+    /**
+     * Reply with a Dstore for each chunk of the requested file, so the client can fetch the chunks from all of them at once.
+     * Replies with "LOAD_FROM_CHUNKS *file_size* *chunk_size* *chunk_count* *chunk1* *port1* *chunk2* *port2* ...",
+     * where each chunk is loaded with "LOAD_DATA *chunk*". A file that wasn't stored in chunks is sent as a single chunk of itself.
+     * @param fileName Filename to be loaded
+     * @param client Client which made the request
+     */
+    public void requestLoadChunks(String fileName, ClientRequest client) throws Exception {
+        checkState(fileName, "store complete", true);
+
+        List<String> parts = index.getParts(fileName);
+        ArrayList<DstoreCon> chosen = new ArrayList<>();
+        for (String part : parts) {
+            ArrayList<DstoreCon> dStores = loadableDstores(part);
+            if (dStores.size() == 0) throw new Exception("ERROR_LOAD");
+            chosen.add(chooseReplica(dStores));
+        }
+        ArrayList<String> reply = new ArrayList<>(List.of("LOAD_FROM_CHUNKS", Long.toString(index.getFileSize(fileName))));
+        Long fileChunkSize = index.getChunkSize(fileName);
+        reply.add(Long.toString(fileChunkSize != null ? fileChunkSize : index.getFileSize(fileName)));
+        reply.add(Integer.toString(parts.size()));
+        for (int i = 0; i < parts.size(); i++) {
+            chosen.get(i).loadStarted();
+            reply.add(parts.get(i));
+            reply.add(Integer.toString(chosen.get(i).getPort()));
+        }
+        client.sendFields(reply);
+    }
+
+    /**
+     * Reply with every Dstore that holds the requested file, so the client can fetch byte ranges from all of them at once.
+     * Replies with "LOAD_FROM_REPLICAS *file_size* *port1* *port2* ..."
+     * @param fileName Filename to be loaded
+     * @param client Client which made the request
+     */
+    public void requestLoadReplicas(String fileName, ClientRequest client) throws Exception {
+        checkState(fileName, "store complete", true);
+
+        ArrayList<DstoreCon> dStores = loadableDstores(fileName);
+        if (dStores.size() == 0) throw new Exception("ERROR_LOAD");
+        //Not counted as loads, since the client may only fetch ranges from some of them. Their LOAD_DONEs say so
+        String ports = dStores.stream().map(x -> Integer.toString(x.getPort())).collect(Collectors.joining(" "));
+        client.sendMessage("LOAD_FROM_REPLICAS " + index.getFileSize(fileName) + " " + ports);
+    }
+
     /**
      * Handle when the client sends a STORE message.
-     * Finds *replicationFactor* Dstores with the least files and sends their ports to the Client.
+     * Picks *replicationFactor* Dstores with the placement strategy and sends their ports to the Client.
      * Will then start a new Thread to handle waiting for when all of the STORE_ACKs have arrived, and notifying the client when they do.
      * @param fileName Name of file being stored
      * @param fileSize Size of file being stored
      * @param client Client connection that requested the store.
      */
-    public void requestStore(String fileName, Integer fileSize, ClientConnection client) throws Exception {
+    public void requestStore(String fileName, long fileSize, ClientRequest client) throws Exception {
         //Thread to handle waiting for all of the STORE_ACKs to arrive      
-        synchronized (expectedStoreAcks) {
+        synchronized (fencedFiles) {
+            awaitUnfenced(List.of(fileName));
             checkState(fileName, null, false);
             index.putFile(fileName, "store in progress", fileSize);
         }
         expectedStoreAcks.put(fileName, new CountDownLatch(replicationFactor));
-        ArrayList<DstoreCon> stores = new ArrayList<>(index.getDStoreListSorted().stream().limit(replicationFactor).toList());
+        ArrayList<DstoreCon> stores = new ArrayList<>(placement.place(fileName, fileSize, replicationFactor));
         client.sendMessage("STORE_TO "+ stores.stream().map(x -> Integer.toString(x.getPort())).collect(Collectors.joining(" ")));
         try {if (!expectedStoreAcks.get(fileName).await(timeout, TimeUnit.MILLISECONDS)) index.removeFile(fileName);
             else {
+                for (DstoreCon d : stores) index.addRelation(d, fileName);
+                index.updateStatus(fileName, "store complete");
                 client.sendMessage("STORE_COMPLETE"); 
+        }} catch (Exception e) {}
+    }
+
+    /**
+     * Handle when the client sends a STORE_CHUNKS message.
+     * Splits the file into chunks of *chunkSize* bytes, and places and replicates each one on its own, so that large files
+     * can be sent to (and loaded from) many Dstores at once and are rebalanced a chunk at a time.
+     * Replies with "STORE_TO_CHUNKS *chunk_size* *chunk_count* *chunk1* *k* *port1* ... *portk* *chunk2* ...",
+     * after which each chunk is stored on its Dstores with "STORE *chunk* *chunk_size*" as if it were a file.
+     * @param fileName Name of file being stored
+     * @param fileSize Size of file being stored
+     * @param client Client connection that requested the store.
+     */
+    public void requestStoreChunks(String fileName, long fileSize, ClientRequest client) throws Exception {
+        List<String> parts = FileIndex.chunkNames(fileName, fileSize, chunkSize);
+        synchronized (fencedFiles) {
+            ArrayList<String> names = new ArrayList<>(parts);
+            names.add(fileName);
+            awaitUnfenced(names);
+            checkState(fileName, null, false);
+            for (String part : parts) checkState(part, null, false);
+            index.putChunkedFile(fileName, "store in progress", fileSize, chunkSize);
+            for (int i = 0; i < parts.size(); i++) index.putFile(parts.get(i), "store in progress", FileIndex.chunkLength(fileSize, chunkSize, i));
+        }
+        ArrayList<List<DstoreCon>> stores = new ArrayList<>();
+        ArrayList<String> reply = new ArrayList<>(List.of("STORE_TO_CHUNKS", Long.toString(chunkSize), Integer.toString(parts.size())));
+        for (int i = 0; i < parts.size(); i++) {
+            List<DstoreCon> partStores = placement.place(parts.get(i), FileIndex.chunkLength(fileSize, chunkSize, i), replicationFactor);
+            stores.add(partStores);
+            reply.add(parts.get(i));
+            reply.add(Integer.toString(partStores.size()));
+            for (DstoreCon dStore : partStores) reply.add(Integer.toString(dStore.getPort()));
+        }
+        CountDownLatch acks = new CountDownLatch(stores.stream().mapToInt(List::size).sum());
+        for (String part : parts) expectedStoreAcks.put(part, acks);
+        client.sendFields(reply);
+        try {if (!acks.await(timeout, TimeUnit.MILLISECONDS)) index.removeFile(fileName);
+            else {
+                for (int i = 0; i < parts.size(); i++) {
+                    for (DstoreCon d : stores.get(i)) index.addRelation(d, parts.get(i));
+                    index.updateStatus(parts.get(i), "store complete");
+                }
                 index.updateStatus(fileName, "store complete");
-                for (DstoreCon d : stores) index.addRelation(d, fileName);
+                client.sendMessage("STORE_COMPLETE");
         }} catch (Exception e) {}
     }
 
     /**
-     * Handle when a client requests a LIST
+     * Handle when a client requests a LIST, of every file, or "LIST [prefix=*prefix*] [after=*file*] [limit=*n*]" for a page of them.
+     * Pages are answered with "LIST_PAGE MORE|END *file* ...", in order, and the next page starts after the last file of this one.
+     * Files are kept sorted as they change, so a page costs about its own size however many files there are.
+     * @param segments Message the client sent
      * @param client Client that requested
      */
-    public void requestList(ClientConnection client) throws Exception {
+    public void requestList(String[] segments, ClientRequest client) throws Exception {
         checkState(null, null, false);
 
-        ArrayList<String> files = new ArrayList<>(index.getFileSet().stream().filter(x -> "store complete".equals(index.getFileStatus(x))).toList());
-        if (files.size() == 0) client.sendMessage("LIST");
-        else client.sendMessage("LIST " + files.stream().collect(Collectors.joining(" ")));
+        if (segments.length == 1) {
+            ArrayList<String> files = new ArrayList<>();
+            files.add("LIST");
+            index.listPage("", null, Integer.MAX_VALUE, files);
+            client.sendFields(files);
+            return;
+        }
+        String prefix = "", after = null;
+        int limit = MAX_LIST_PAGE;
+        for (int i = 1; i < segments.length; i++) {
+            if (segments[i].startsWith("prefix=")) prefix = segments[i].substring(7);
+            else if (segments[i].startsWith("after=")) after = segments[i].substring(6);
+            else if (segments[i].startsWith("limit=")) {
+                long requested;
+                try { requested = Long.parseLong(segments[i].substring(6)); }
+                catch (NumberFormatException e) { throw new Exception("ERROR_MALFORMED_LIST " + segments[i]); }
+                if (requested < 1) throw new Exception("ERROR_MALFORMED_LIST " + segments[i]);
+                limit = (int) Math.min(MAX_LIST_PAGE, requested);
+            }
+            else throw new Exception("ERROR_MALFORMED_LIST " + segments[i]);
+        }
+        ArrayList<String> page = new ArrayList<>();
+        boolean more = index.listPage(prefix, after, limit, page);
+        ArrayList<String> reply = new ArrayList<>(List.of("LIST_PAGE", more ? "MORE" : "END"));
+        reply.addAll(page);
+        client.sendFields(reply);
     }
 
     /**
      * Determine what type of connection this socket is.
+     * If it opens by offering frames (Wire.HELLO) they are accepted, and its first message is read as a frame.
      * @param socket Socket from "listenForConections()".
      */
     private void handleNewConnection(Socket socket) {
-        new Thread(() -> {
+        ConnectionThread.execute("NewConnections", () -> {
             try {
-                BufferedReader br = new BufferedReader(new InputStreamReader(socket.getInputStream()));
                 socket.setSoTimeout(timeout);
-                String currLine = "";
-                while ((currLine = br.readLine()) != null) {
-                    Boolean doRebal = false;
+                BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                String firstLine = Wire.readLine(in);
+                if (firstLine == null) return;
+                if (firstLine.equals(Wire.HELLO)) {
+                    socket.getOutputStream().write((Wire.HELLO + "\n").getBytes(StandardCharsets.UTF_8));
+                    String[] first = Wire.read(in);
+                    if (first == null) return;
+                    socket.setSoTimeout(0);
+                    registerConnection(first, socket, in, true, null);
+                } else {
                     socket.setSoTimeout(0);
-                    rebalLock.lock(); //Make things wait for a rebalance to finish before connecting
-                    if (currLine.startsWith("JOIN")) {
-                        DstoreCon d = new DstoreCon(socket, Integer.parseInt(currLine.substring(5)), br, this);
-                        Logger.info("Dstore connected. Port: " + d.getPort(), this);
-                        index.addDstore(d);
-                        doRebal = true;
-                    } else {
-                        ClientConnection newClient = new ClientConnection(socket, "client" + clients.size(), br, this);
-                        Logger.info("Client connected. client" + clients.size() + " message: " + currLine, this);
-                        clients.add(newClient);
-                        newClient.reveiveMessage(currLine);
-                    }
-                    rebalLock.unlock();
-                    if (doRebal) rebalScheduler.execute(() -> rebalance());
-                    break;
+                    registerConnection(firstLine.split(" "), socket, in, false, null);
                 }
-            } catch (Exception e) { 
-                Logger.err("Something went wrong with the connection", e, this); 
-                rebalLock.unlock();
+            } catch (Exception e) { Logger.err("Something went wrong with the connection", e, this); }
+        });
+    }
+
+    /**
+     * Determine what type of connection a SelectorLoop channel is from the first message it sent.
+     * @param channel Channel the message arrived on
+     * @param firstLine First message sent
+     */
+    private void handleFirstMessage(SelectorLoop.LineChannel channel, String firstLine) {
+        if (firstLine.equals(Wire.HELLO)) { //Frames aren't read by the SelectorLoop, so the connection carries on as text
+            channel.send("ERROR_BINARY_UNSUPPORTED");
+            return;
+        }
+        try { registerConnection(firstLine.split(" "), channel.socket(), null, false, channel); }
+        catch (Exception e) {
+            Logger.err("Something went wrong with the connection", e, this);
+            channel.close();
+        }
+    }
+
+    /**
+     * Create a Dstore or client connection depending on the first message.
+     * Exactly one of in (threaded front end) and channel (selector front end) should be non-null.
+     * @param first First message sent on the connection
+     * @param socket Socket of the connection
+     * @param in Stream that the first message was read from
+     * @param binary Whether the connection switched to frames before the first message
+     * @param channel SelectorLoop channel that the first message arrived on
+     */
+    private void registerConnection(String[] first, Socket socket, InputStream in, boolean binary, SelectorLoop.LineChannel channel) throws IOException {
+        if (first[0].equals("JOIN")) {
+            rebalLock.lock(); //Dstores wait for a rebalance to finish before joining
+            try {
+                int port = Integer.parseInt(first[1]);
+                DstoreCon d = channel == null ? new DstoreCon(socket, port, in, binary, this) : new DstoreCon(channel, port, this);
+                Logger.info("Dstore connected. Port: " + d.getPort(), this);
+                synchronized (throttleLock) {
+                    if (rebalanceRate >= 0) d.throttle(rebalanceRate);
+                    index.addDstore(d);
+                }
+                placement.addDstore(d);
+                reconcileInventory(d, first);
+            } finally { rebalLock.unlock(); }
+            rebalScheduler.execute(() -> rebalance());
+        } else {
+            ClientConnection newClient;
+            synchronized (clients) {
+                String name = "client" + clients.size();
+                newClient = channel == null ? new ClientConnection(socket, name, in, binary, this) : new ClientConnection(channel, name, this);
+                Logger.info("Client connected. " + name + " message: " + String.join(" ", first), this);
+                clients.add(newClient);
             }
-        }, "NewConnections").start();
+            newClient.reveiveMessage(first);
+        }
+    }
+
+    /**
+     * Match the files that a warm-started Dstore sent with its JOIN ("JOIN *port* *file* *size* ...") against the index,
+     * so they don't have to be replicated to it again.
+     * Unknown files are adopted, unless the index is persisted (in which case they're stale and left for the rebalance to remove).
+     * @param dStore Dstore that joined
+     * @param segments The JOIN message split on spaces
+     */
+    private void reconcileInventory(DstoreCon dStore, String[] segments) {
+        int matched = 0;
+        Set<String> alreadyHeld = new HashSet<>(index.getDstoreFiles(dStore));
+        ArrayList<String> orphans = new ArrayList<>();
+        for (int i = 2; i + 1 < segments.length; i += 2) {
+            String fileName = segments[i];
+            long size = Long.parseLong(segments[i + 1]);
+            if (index.getFileStatus(fileName) == null && !index.isPersisted()) index.putFile(fileName, "store complete", size);
+            Long indexedSize = index.getFileSize(fileName); //Null for a file removed while the Dstore was down
+            if (!"store complete".equals(index.getFileStatus(fileName)) || indexedSize == null || indexedSize != size) {
+                orphans.add(fileName);
+                continue;
+            }
+            try {
+                if (!alreadyHeld.contains(fileName)) index.addRelation(dStore, fileName); //Otherwise matched from the persisted index
+                matched++;
+            } catch (Exception e) { Logger.err("Could not add a file from the Dstore's inventory: " + fileName, e, this); }
+        }
+        index.markDirty(orphans); //So the next rebalance removes them
+        if (segments.length > 2) Logger.info("Dstore " + dStore.getPort() + " already holds " + matched + " indexed files", this);
     }
 
     /**
@@ -372,6 +658,7 @@ class Controller {
             throw new Exception("ERROR_NOT_ENOUGH_DSTORES");
         }
         if (fileName == null) return;
+        if (status != null && index.getChunkOwner(fileName) != null) throw new Exception("ERROR_FILE_DOES_NOT_EXIST"); //Chunks are only reached through their file
         if (status == null) { if (index.getFileSet().contains(fileName)) throw new Exception("ERROR_FILE_ALREADY_EXISTS"); } 
         else {
             if (checkSize && index.getFileSize(fileName) == null) throw new Exception("ERROR_FILE_DOES_NOT_EXIST");
@@ -379,153 +666,609 @@ class Controller {
         }
     }
 
+    /**
+     * Wait until no rebalance is moving any of the files. Must hold fencedFiles.
+     * @param fileNames names of files
+     */
+    private void awaitUnfenced(Collection<String> fileNames) throws InterruptedException {
+        while (fileNames.stream().anyMatch(fencedFiles::containsKey)) fencedFiles.wait();
+    }
+
+    /**
+     * Dstores holding a file that can be loaded from right now, leaving out any a rebalance is about to remove it from.
+     * @param fileName name of file
+     * @throws Exception If there are none
+     */
+    private ArrayList<DstoreCon> loadableDstores(String fileName) throws Exception {
+        ArrayList<DstoreCon> dStores = index.getFileDstores(fileName);
+        if (dStores == null) throw new Exception("ERROR_LOAD");
+        Set<DstoreCon> leaving;
+        synchronized (fencedFiles) { leaving = fencedFiles.getOrDefault(fileName, Set.of()); }
+        ArrayList<DstoreCon> loadable = new ArrayList<>(dStores);
+        loadable.removeAll(leaving);
+        return loadable;
+    }
+
     /**
      * Handle if the socket is a Dstore connection.
      */
     private class DstoreCon extends ConnectionThread<Controller> {
+        /** Loads are timed per byte, with anything smaller counted as this, so the fixed cost of tiny loads isn't blown up */
+        private static final long MIN_LOAD_BYTES = 4096;
+        /** Weight of the newest load in the moving average of load cost */
+        private static final double LOAD_COST_WEIGHT = 0.2;
+
         private final int port;
+        private long epoch = -1, version = 0; //Which of the Dstore's inventories listedFiles matches
+        private boolean awaitingChanges = false;
+        private final HashMap<String, Long> listedFiles = new HashMap<>(); //File -> size, kept up to date from LIST_DELTA / LIST_FULL replies
+        private long listedBytes = 0; //Empty files count as 1 byte, as in the RebalancePlanner
+        private volatile long capacity = 0, used = 0; //From the latest STATUS, 0 until one arrives
+        private volatile long rebalanceRate = 0; //Bytes per second its rebalance sends are limited to, 0 for no limit
+        private volatile boolean sendsRepairsFirst = false; //Whether its STATUS has a rate, so it reads the repairs count at the end of a REBALANCE
+        private final AtomicInteger loadsInFlight = new AtomicInteger(); //LOAD_FROMs sent that haven't had a LOAD_DONE yet
+        private double loadCost = 0; //Moving average of microseconds per byte loaded, 0 until a load is reported
 
-        public DstoreCon(Socket socket, int port, BufferedReader br, Controller controller) throws IOException {
-            super(socket, "Dstore"+port, br, controller);
+        public DstoreCon(Socket socket, int port, InputStream in, boolean binary, Controller controller) throws IOException {
+            super(socket, "Dstore"+port, in, binary, controller);
             this.port = port;
         }
 
-        public void reveiveMessage(String message) {
+        public DstoreCon(SelectorLoop.LineChannel channel, int port, Controller controller) {
+            super(channel, "Dstore"+port, controller);
+            this.port = port;
+        }
+
+        public void reveiveMessage(String[] segments) {
             try {
-                if (message.startsWith("STORE_ACK")) server.expectedStoreAcks.get(message.split(" ")[1]).countDown();
-                if (message.startsWith("REMOVE_ACK")) server.expectedRemoveAcks.get(message.split(" ")[1]).countDown();
-                if (message.startsWith("LIST")) updateDstore(message);
-                if (message.equals("REBALANCE_COMPLETE")) server.expectedRebalanceAcks.countDown();
-            } catch(NullPointerException e) { Logger.info("Meesage malformed  / unexpected", this); }
+                String command = segments[0];
+                if (command.equals("STORE_ACK")) server.expectedStoreAcks.get(segments[1]).countDown();
+                if (command.equals("REMOVE_ACK")) server.expectedRemoveAcks.get(segments[1]).countDown();
+                if (command.equals("LIST_DELTA") || command.equals("LIST_FULL")) updateDstore(segments);
+                if (command.equals("STATUS")) updateStatus(segments);
+                if (command.equals("LOAD_DONE")) loadDone(segments);
+                if (command.equals("REBALANCE_COMPLETE")) server.expectedRebalanceAcks.countDown();
+            } catch(NullPointerException | ArrayIndexOutOfBoundsException e) { Logger.info("Meesage malformed  / unexpected", this); }
             catch (Exception e) { Logger.err("Something went wrong with a request:", e, this);}
         }
 
-        private void updateDstore(String message) throws NullPointerException {
-            if (expectedLists.getCount() <= 0 || dStoreLists.keySet().contains(this)) return;
-            String fileString = message.substring(5);
-            if (fileString.isEmpty()) synchronized (dStoreLists) { dStoreLists.put(this, new ArrayList<>()); }
-            else synchronized (dStoreLists) { dStoreLists.put(this, new ArrayList<>(Arrays.asList(fileString.split(" ")))); }
-            expectedLists.countDown();
+        /**
+         * Ask the Dstore for everything that has changed since the version it last reported.
+         */
+        public void requestChanges() {
+            synchronized (listedFiles) {
+                awaitingChanges = true;
+                sendMessage("LIST_SINCE " + epoch + " " + version);
+            }
+        }
+
+        /**
+         * Apply a "LIST_DELTA *epoch* *version* +file -file ..." or "LIST_FULL *epoch* *version* file ..." reply,
+         * marking every file that changed as dirty for the rebalance.
+         */
+        private void updateDstore(String[] segments) throws NullPointerException {
+            boolean full = segments[0].equals("LIST_FULL");
+            long newEpoch = Long.parseLong(segments[1]), newVersion = Long.parseLong(segments[2]);
+            ArrayList<String> changed = new ArrayList<>();
+            boolean counted;
+            synchronized (listedFiles) {
+                counted = awaitingChanges;
+                awaitingChanges = false;
+                if ((newEpoch == epoch && newVersion < version) || (!full && newEpoch != epoch)) { //Stale reply, but still a reply
+                    if (counted) server.expectedLists.countDown();
+                    return;
+                }
+                if (full) {
+                    changed.addAll(listedFiles.keySet());
+                    listedFiles.clear();
+                    listedBytes = 0;
+                }
+                for (int i = 3; i < segments.length; i++) {
+                    String fileName = full ? segments[i] : segments[i].substring(1);
+                    Long oldSize = (full || segments[i].charAt(0) == '+') ? listedFiles.put(fileName, Math.max(1, server.sizeOf(fileName))) : listedFiles.remove(fileName);
+                    if (oldSize != null) listedBytes -= oldSize;
+                    if (listedFiles.containsKey(fileName)) listedBytes += listedFiles.get(fileName);
+                    changed.add(fileName);
+                }
+                epoch = newEpoch;
+                version = newVersion;
+            }
+            server.index.markDirty(changed);
+            if (counted) expectedLists.countDown();
+        }
+
+        /**
+         * Apply a "STATUS *capacity* *used* *loads* [*rebalance_rate*]" report of the Dstore's space in bytes, the client loads
+         * it is serving and the rate limit of its rebalance sends.
+         */
+        private void updateStatus(String[] segments) {
+            capacity = Long.parseLong(segments[1]);
+            used = Long.parseLong(segments[2]);
+            //Clients that were sent here but never connected are never LOAD_DONE, so don't count more loads than the Dstore has
+            int loads = Integer.parseInt(segments[3]);
+            loadsInFlight.getAndUpdate(x -> Math.min(x, loads));
+            if (segments.length > 4) {
+                rebalanceRate = Long.parseLong(segments[4]);
+                sendsRepairsFirst = true;
+            }
+        }
+
+        /**
+         * Apply a "LOAD_DONE *bytes* *micros* [range]" report of a client load finishing.
+         * Byte ranges (from LOAD_REPLICAS) weren't counted when they were sent here, so are only timed.
+         */
+        private void loadDone(String[] segments) {
+            long bytes = Long.parseLong(segments[1]), micros = Long.parseLong(segments[2]);
+            if (segments.length < 4) loadsInFlight.getAndUpdate(x -> Math.max(0, x - 1));
+            if (bytes == 0) return; //Failed, nothing to time
+            double cost = (double) micros / Math.max(bytes, MIN_LOAD_BYTES);
+            synchronized (this) { loadCost = loadCost == 0 ? cost : loadCost + LOAD_COST_WEIGHT * (cost - loadCost); }
         }
 
+        public void loadStarted() { loadsInFlight.incrementAndGet(); }
+        public int getLoadsInFlight() { return loadsInFlight.get(); }
+        /** Expected wait for another load, relative to other Dstores. 0 until a load has been timed, so new Dstores get tried */
+        public synchronized double getLoadScore() { return (loadsInFlight.get() + 1) * loadCost; }
+
+        public boolean holds(String fileName) { synchronized (listedFiles) { return listedFiles.containsKey(fileName); } }
+        /** A copy, as a late LIST_DELTA / LIST_FULL reply can change them while the planner is reading it */
+        public Set<String> getListedFiles() { synchronized (listedFiles) { return new HashSet<>(listedFiles.keySet()); } }
+        public long getListedBytes() { synchronized (listedFiles) { return listedBytes; } }
+
+        public long getCapacity() { return capacity; }
+        /** Bytes used, counting files the Dstore has listed that its last STATUS didn't include yet */
+        public long getUsedSpace() { return Math.max(used, getListedBytes()); }
+        public long getFreeSpace() { return capacity == 0 ? Long.MAX_VALUE : capacity - getUsedSpace(); }
+
         public int getPort() { return port; }
 
+        public long getRebalanceRate() { return rebalanceRate; }
+        /** Dstores from before rebalance rates don't expect a repairs count after the removals, so aren't sent one */
+        public boolean sendsRepairsFirst() { return sendsRepairsFirst; }
+
+        /**
+         * Limit the rate the Dstore sends files at in rebalances.
+         * @param rate Bytes per second, 0 for no limit
+         */
+        public void throttle(long rate) {
+            rebalanceRate = rate;
+            sendMessage("THROTTLE " + rate);
+        }
+
         @Override
         public void close() {
             super.close();
+            server.placement.removeDstore(this);
             server.index.removeDstore(this);
         }
     }
 
     /**
-     * Handle if the socket is a Client connection
+     * Places new files on the Dstores using the smallest share of their capacity, as found by sorting them all.
+     * Dstores without room for the file come last.
+     */
+    private class LeastUsedPlacement implements PlacementStrategy<DstoreCon> {
+        public void addDstore(DstoreCon dStore) {}
+        public void removeDstore(DstoreCon dStore) {}
+        public List<DstoreCon> place(String fileName, long size, int replicas) {
+            ArrayList<DstoreCon> dStores = new ArrayList<>(index.getDStoreSet());
+            long fallbackCapacity = defaultCapacity(dStores);
+            return dStores.stream()
+                .sorted(Comparator.<DstoreCon, Boolean>comparing(x -> x.getFreeSpace() < size)
+                    .thenComparingDouble(x -> (double) x.getUsedSpace() / (x.getCapacity() > 0 ? x.getCapacity() : fallbackCapacity)))
+                .limit(replicas).toList();
+        }
+    }
+
+    /**
+     * Where the replies to one client request go: the client's connection, with "ID *id*" in front of each reply
+     * if the request was tagged with one.
+     */
+    private record ClientRequest(ClientConnection client, String id) {
+        public void sendMessage(String message) {
+            if (id == null) client.sendMessage(message);
+            else sendFields(Arrays.asList(message.split(" ")));
+        }
+
+        public void sendFields(List<String> fields) {
+            if (id == null) {
+                client.sendFields(fields);
+                return;
+            }
+            ArrayList<String> tagged = new ArrayList<>(fields.size() + 2);
+            tagged.add("ID");
+            tagged.add(id);
+            tagged.addAll(fields);
+            client.sendFields(tagged);
+        }
+    }
+
+    /**
+     * Handle if the socket is a Client connection.
+     * Requests are handled one at a time, in order, unless they are sent as "ID *id* *request*". Those are handled alongside
+     * each other (up to MAX_IN_FLIGHT at once), so that a client can pipeline many on one connection, and their replies
+     * come back tagged with the same ID as each completes.
      */
     private class ClientConnection extends ConnectionThread<Controller> {
+        /** Tagged requests a client can have in flight at once, after which its connection stops reading until one finishes */
+        private static final int MAX_IN_FLIGHT = 1024;
 
-        private final HashMap<String, ArrayList<DstoreCon>> requestedLoads = new HashMap<>();
+        private final ConcurrentHashMap<String, ArrayList<DstoreCon>> requestedLoads = new ConcurrentHashMap<>();
         private final ReentrantLock lock = new ReentrantLock();
+        private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
     
-        public ClientConnection(Socket socket, String name, BufferedReader br, Controller controller) throws IOException {
-            super(socket, name, br, controller);
+        public ClientConnection(Socket socket, String name, InputStream in, boolean binary, Controller controller) throws IOException {
+            super(socket, name, in, binary, controller);
         }
 
-        public void lock() { lock.lock(); }
-        public void unlock() throws IllegalMonitorStateException { lock.unlock(); }
+        public ClientConnection(SelectorLoop.LineChannel channel, String name, Controller controller) {
+            super(channel, name, controller);
+        }
 
-        public void reveiveMessage(String message) {
+        public void reveiveMessage(String[] segments) {
+            if (segments[0].equals("ID") && segments.length > 2) {
+                ClientRequest request = new ClientRequest(this, segments[1]);
+                String[] tagged = Arrays.copyOfRange(segments, 2, segments.length);
+                if (!inFlight.tryAcquire()) { //A blocking reader stops reading while it waits, the selector has to be told to
+                    if (lineChannel != null) lineChannel.setReading(false);
+                    inFlight.acquireUninterruptibly();
+                    if (lineChannel != null) lineChannel.setReading(true);
+                }
+                ConnectionThread.execute(name + "-" + segments[1], () -> {
+                    try { handleRequest(tagged, request); }
+                    finally { inFlight.release(); }
+                });
+                return;
+            }
+            lock.lock();
+            try { handleRequest(segments, new ClientRequest(this, null)); }
+            finally { lock.unlock(); }
+        }
+
+        /**
+         * Handle a request, sending its replies (including any error) to where it came from.
+         * @param segments The request, without its ID
+         * @param request Where the replies go
+         */
+        private void handleRequest(String[] segments, ClientRequest request) {
             try {
-                lock.lock();
-                if (message.startsWith("LIST")) { server.requestList(this); return; }
-                String fileName = message.split(" ")[1];
-                if (message.startsWith("STORE")) server.requestStore(fileName, Integer.parseInt(message.split(" ")[2]), this);
-                if (message.startsWith("LOAD")) requestedLoads.put(fileName, server.requestLoad(fileName, this, new ArrayList<>()));
-                if (message.startsWith("RELOAD")) requestedLoads.put(fileName, server.requestLoad(fileName, this, requestedLoads.get(fileName)));
-                if (message.startsWith("REMOVE")) server.requestRemove(fileName, this);
+                String command = segments[0];
+                if (command.equals("LIST")) { server.requestList(segments, request); return; }
+                if (command.equals("THROTTLE")) { server.requestThrottle(segments, request); return; }
+                String fileName = segments[1];
+                if (command.equals("LOAD_REPLICAS")) server.requestLoadReplicas(fileName, request);
+                if (command.equals("LOAD_CHUNKS")) server.requestLoadChunks(fileName, request);
+                if (command.equals("STORE_CHUNKS")) server.requestStoreChunks(fileName, Long.parseLong(segments[2]), request);
+                if (command.equals("STORE")) server.requestStore(fileName, Long.parseLong(segments[2]), request);
+                if (command.equals("LOAD")) requestedLoads.put(fileName, server.requestLoad(fileName, request, new ArrayList<>()));
+                if (command.equals("RELOAD")) requestedLoads.put(fileName, server.requestLoad(fileName, request, requestedLoads.get(fileName)));
+                if (command.equals("REMOVE")) server.requestRemove(fileName, request);
             } catch (NullPointerException e) { Logger.info("Message malformed", this); }
             catch (ArrayIndexOutOfBoundsException e) { Logger.info("Message malformed", this); }
             catch (Exception e) { 
-                this.sendMessage(e.getMessage()); 
-                requestedLoads.put(message.split(" ")[1], null);
-            } finally { lock.unlock(); }
+                request.sendMessage(e.getMessage()); 
+                if (segments.length > 1) requestedLoads.remove(segments[1]);
+            }
         }
     }
 
     private class FileIndex {
+        /** Number of log records between snapshots */
+        private static final long SNAPSHOT_INTERVAL = 100000;
+        /** Between a chunked file's name and a chunk's number, in the names its chunks are stored under */
+        private static final String CHUNK_SEPARATOR = "#";
+
         private ConcurrentHashMap<String, String> fileStatus = new ConcurrentHashMap<>();
-        private ConcurrentHashMap<String, Integer> fileSizes = new ConcurrentHashMap<>();
-        private ConcurrentHashMap<DstoreCon, ArrayList<String>> dStoreFiles = new ConcurrentHashMap<>(); 
+        private ConcurrentHashMap<String, Long> fileSizes = new ConcurrentHashMap<>();
+        private ConcurrentHashMap<DstoreCon, Set<String>> dStoreFiles = new ConcurrentHashMap<>();
         private ConcurrentHashMap<String, ArrayList<DstoreCon>> fileDstores = new ConcurrentHashMap<>();
+        private ConcurrentHashMap<String, Long> chunkSizes = new ConcurrentHashMap<>(); //Files stored in chunks -> chunk size
+        private final ConcurrentSkipListSet<String> listed = new ConcurrentSkipListSet<>(); //Completely stored files (not chunks), in order, for LIST
+        private ConcurrentHashMap<Integer, Set<String>> pendingRelations = new ConcurrentHashMap<>(); //Recovered files of Dstores that haven't re-JOINed
+        private final ConcurrentHashMap<String, Long> dirtyFiles = new ConcurrentHashMap<>(); //Files changed since the last rebalance -> stamp of the latest change
+        private final AtomicLong changeStamp = new AtomicLong();
 
-        public synchronized void updateAll(HashMap<DstoreCon, ArrayList<String>> newIndex) {
-            ConcurrentHashMap<DstoreCon, ArrayList<String>> oldStores = new ConcurrentHashMap<>(); //Dstores that were not re-listed
-            dStoreFiles.forEachEntry(0, x -> { if (!newIndex.keySet().contains(x.getKey())) oldStores.entrySet().add(x); });
-            dStoreFiles = new ConcurrentHashMap<>(newIndex);
-            dStoreFiles.entrySet().addAll(oldStores.entrySet());
-            fileDstores = new ConcurrentHashMap<>();
-            for (DstoreCon dStore : newIndex.keySet()) {
-                for (String file : newIndex.get(dStore)) {
-                    if (fileDstores.keySet().contains(file)) fileDstores.get(file).add(dStore);
-                    else {
-                        ArrayList<DstoreCon> value = new ArrayList<>();
-                        value.add(dStore);
-                        fileDstores.put(file, value);
-                    }
-                }
+        private MetadataLog log = new MetadataLog(null);
+        private final ReentrantReadWriteLock persistLock = new ReentrantReadWriteLock(); //Changes hold the read lock, snapshots the write lock
+
+        /**
+         * Recover the index from the metadata log in the given folder, and log every change to it from now on.
+         * Only completed stores are kept, and their Dstores are matched up by port as they re-JOIN.
+         * @param folder Folder holding the log and snapshots
+         * @throws IOException If the log could not be read
+         */
+        public void open(File folder) throws IOException {
+            log = new MetadataLog(folder);
+            MetadataLog.State state = log.recover();
+            state.chunkSizes.forEach((fileName, fileChunkSize) -> {
+                if (!"store complete".equals(state.statuses.get(fileName))) { //Its chunks are left for the rebalance to remove
+                    for (String part : chunkNames(fileName, state.sizes.getOrDefault(fileName, 0L), fileChunkSize)) state.statuses.remove(part);
+                } else chunkSizes.put(fileName, fileChunkSize);
+            });
+            state.statuses.forEach((fileName, status) -> {
+                if (status.equals("store complete")) fileSizes.put(fileName, state.sizes.getOrDefault(fileName, 0L));
+            });
+            //Only once every size is in can a chunk be told from a file, whichever order they come up in
+            fileSizes.keySet().forEach(fileName -> setStatus(fileName, "store complete"));
+            state.relations.forEach((port, files) -> {
+                files.retainAll(fileStatus.keySet());
+                if (files.isEmpty()) return;
+                Set<String> pending = ConcurrentHashMap.newKeySet();
+                pending.addAll(files);
+                pendingRelations.put(port, pending);
+            });
+            Logger.info("Recovered " + fileStatus.size() + " files from " + folder.getPath(), this);
+            snapshot();
+        }
+
+        /**
+         * Snapshot the index and start a new log segment, so that a restart only has to replay changes made after this point.
+         */
+        private void snapshot() {
+            MetadataLog.State state = new MetadataLog.State();
+            long id;
+            persistLock.writeLock().lock();
+            try {
+                state.statuses.putAll(fileStatus);
+                state.sizes.putAll(fileSizes);
+                state.chunkSizes.putAll(chunkSizes);
+                pendingRelations.forEach((port, files) -> state.relations.put(port, new HashSet<>(files)));
+                dStoreFiles.forEach((dStore, files) -> state.relations.put(dStore.getPort(), new HashSet<>(files)));
+                id = log.rotate();
+            } catch (IOException e) {
+                Logger.err("Could not start a new metadata log segment", e, this);
+                return;
+            } finally { persistLock.writeLock().unlock(); }
+            ConnectionThread.execute("Snapshot", () -> {
+                try { log.writeSnapshot(state, id); }
+                catch (IOException e) { Logger.err("Could not write a metadata snapshot", e, this); }
+            });
+        }
+
+        private void beginChange() { persistLock.readLock().lock(); }
+
+        /**
+         * Finish a change started with beginChange(), snapshotting if enough has been logged since the last one.
+         * @param durable Whether to wait for the change to reach disk before returning
+         */
+        private void endChange(boolean durable) {
+            persistLock.readLock().unlock();
+            if (durable) {
+                try { log.sync(); }
+                catch (IOException e) { Logger.err("Could not write to the metadata log", e, this); }
             }
-            for (String oldFile : fileStatus.keySet()) {
-                if (fileDstores.containsKey(oldFile)) fileStatus.put(oldFile, "store complete");
-                else removeFile(oldFile);
+            if (log.snapshotDue(SNAPSHOT_INTERVAL)) snapshot();
+        }
+
+        /**
+         * Replace the Dstores holding a file with the ones a rebalance left it on.
+         * @param fileName Name of file
+         * @param dStores Dstores now holding it
+         */
+        public synchronized void setFileDstores(String fileName, List<DstoreCon> dStores) {
+            beginChange();
+            try {
+                log.appendSetFileDstores(fileName, dStores.stream().map(DstoreCon::getPort).toList());
+                ArrayList<DstoreCon> oldStores = fileDstores.put(fileName, new ArrayList<>(dStores));
+                if (oldStores != null) for (DstoreCon dStore : oldStores) {
+                    Set<String> files = dStoreFiles.get(dStore);
+                    if (files != null) files.remove(fileName);
+                }
+                for (DstoreCon dStore : dStores) {
+                    Set<String> files = dStoreFiles.get(dStore);
+                    if (files != null) files.add(fileName);
+                }
+                setStatus(fileName, "store complete");
+            } finally { endChange(true); }
+        }
+
+        /**
+         * Take every file marked as changed since this was last called. Files changed again while taking are left for next time.
+         * @return File name -> stamp of its latest change (0 if only marked by markDirty)
+         */
+        public Map<String, Long> takeDirtyFiles() {
+            HashMap<String, Long> taken = new HashMap<>();
+            for (Map.Entry<String, Long> entry : dirtyFiles.entrySet()) {
+                if (dirtyFiles.remove(entry.getKey(), entry.getValue())) taken.put(entry.getKey(), entry.getValue());
             }
+            return taken;
         }
 
+        public void markDirty(Collection<String> fileNames) { for (String fileName : fileNames) dirtyFiles.merge(fileName, 0L, Math::max); }
+
+        /**
+         * Mark a file as dirty with a new change stamp. Called before its status changes, so anyone who sees the new status sees the stamp too.
+         */
+        private void markChanged(String fileName) { dirtyFiles.put(fileName, changeStamp.incrementAndGet()); }
+
+        public long getChangeStamp() { return changeStamp.get(); }
+        public boolean changedSince(String fileName, long stamp) { return dirtyFiles.getOrDefault(fileName, 0L) > stamp; }
+
         public void addRelation(DstoreCon dStore, String fileName) throws Exception {
-            ArrayList<DstoreCon> dStores;
-            ArrayList<String> fileNames;
+            //Either may not exist in the table yet
+            ArrayList<DstoreCon> dStores = fileDstores.computeIfAbsent(fileName, x -> new ArrayList<>());
+            Set<String> fileNames = dStoreFiles.computeIfAbsent(dStore, x -> ConcurrentHashMap.newKeySet());
+            if(dStores.contains(dStore) || fileNames.contains(fileName)) throw new Exception("Relation already exists");
+            beginChange();
             try {
-                dStores = fileDstores.get(fileName);
-                fileNames = dStoreFiles.get(dStore);
-                if(dStores.contains(dStore) || fileNames.contains(fileName)) throw new Exception("Relation already exists");
-            } catch (NullPointerException e) {
-                //The file probably doesn't exist in the table yet
-                dStores = new ArrayList<>();
-                fileNames = new ArrayList<>();
-                fileDstores.put(fileName, dStores);
-                dStoreFiles.put(dStore, fileNames);
-            }
-            dStores.add(dStore);
-            fileNames.add(fileName);
+                log.appendAddRelation(dStore.getPort(), fileName);
+                dStores.add(dStore);
+                fileNames.add(fileName);
+            } finally { endChange(false); }
         }
 
         public synchronized void removeDstore(DstoreCon dStore) {
-            for (String fileName : dStoreFiles.get(dStore)) { fileDstores.get(fileName).remove(dStore); }
-            dStoreFiles.remove(dStore);
+            beginChange();
+            try {
+                log.appendRemoveDstore(dStore.getPort());
+                Set<String> files = dStoreFiles.remove(dStore);
+                if (files == null) return;
+                for (String fileName : files) {
+                    ArrayList<DstoreCon> dStores = fileDstores.get(fileName);
+                    if (dStores != null) dStores.remove(dStore);
+                }
+                markDirty(files); //Now under-replicated
+            } finally { endChange(true); }
+        }
+
+        /**
+         * Add a newly JOINed Dstore, along with any files it held before the Controller restarted.
+         * @param dStore Dstore that joined
+         */
+        public synchronized void addDstore(DstoreCon dStore) {
+            Set<String> files = ConcurrentHashMap.newKeySet();
+            Set<String> recovered = pendingRelations.remove(dStore.getPort());
+            if (recovered != null) {
+                for (String fileName : recovered) {
+                    if (!fileStatus.containsKey(fileName)) continue;
+                    files.add(fileName);
+                    fileDstores.computeIfAbsent(fileName, x -> new ArrayList<>()).add(dStore);
+                }
+            }
+            dStoreFiles.put(dStore, files);
+        }
+
+        public boolean isPersisted() { return log.isEnabled(); }
+
+        /**
+         * Whether a Dstore that hasn't re-JOINed since a restart holds this file.
+         * @param fileName Name of file
+         */
+        public boolean hasPendingReplicas(String fileName) {
+            return pendingRelations.values().stream().anyMatch(x -> x.contains(fileName));
         }
-        public synchronized void addDstore(DstoreCon dStore) { dStoreFiles.put(dStore, new ArrayList<>()); }
                 
-        public void putFile(String fileName, String status, Integer size) {
-            fileStatus.put(fileName, status);
-            fileSizes.put(fileName, size); 
+        public void putFile(String fileName, String status, long size) {
+            beginChange();
+            try {
+                log.appendPutFile(fileName, status, size);
+                markChanged(fileName);
+                fileSizes.put(fileName, size);
+                setStatus(fileName, status);
+            } finally { endChange(false); }
+        }
+        /**
+         * Add a file stored in chunks. Its chunks are added separately with putFile, as files of their own.
+         */
+        public void putChunkedFile(String fileName, String status, long size, long chunkSize) {
+            beginChange();
+            try {
+                log.appendPutChunkedFile(fileName, status, size, chunkSize);
+                markChanged(fileName);
+                fileSizes.put(fileName, size);
+                chunkSizes.put(fileName, chunkSize);
+                setStatus(fileName, status);
+            } finally { endChange(false); }
+        }
+        public void updateStatus(String fileName, String status) { updateStatus(fileName, status, true); }
+
+        /**
+         * @param durable Whether to wait for the change to reach disk, otherwise sync() must be called once it should have
+         */
+        public void updateStatus(String fileName, String status, boolean durable) {
+            beginChange();
+            try {
+                log.appendUpdateStatus(fileName, status);
+                markChanged(fileName);
+                setStatus(fileName, status);
+            } finally { endChange(durable); }
+        }
+
+        /**
+         * Wait for every change made so far to reach disk.
+         */
+        public void sync() {
+            try { log.sync(); }
+            catch (IOException e) { Logger.err("Could not write to the metadata log", e, this); }
         }
-        public void updateStatus(String fileName, String status) { fileStatus.put(fileName, status); }
         public void removeFile(String fileName) { 
+            beginChange();
+            try { dropFile(fileName); }
+            finally { endChange(true); }
+        }
+        private void dropFile(String fileName) {
+            List<String> parts = getParts(fileName);
+            if (chunkSizes.remove(fileName) != null) for (String part : parts) dropFile(part);
+            log.appendRemoveFile(fileName);
+            markChanged(fileName); //So that any stray replicas are removed
             fileStatus.remove(fileName);
+            listed.remove(fileName);
             fileSizes.remove(fileName);
             
-            for (DstoreCon dStore : fileDstores.get(fileName)) { dStoreFiles.get(dStore).remove(fileName); }
-            fileDstores.remove(fileName);
+            ArrayList<DstoreCon> dStores = fileDstores.remove(fileName);
+            if (dStores != null) for (DstoreCon dStore : dStores) { dStoreFiles.get(dStore).remove(fileName); }
+            for (Set<String> files : pendingRelations.values()) files.remove(fileName);
         }
         
+        /**
+         * Set a file's status, keeping the sorted set of listed files up to date. Its size and chunk size must already be set.
+         */
+        private void setStatus(String fileName, String status) {
+            fileStatus.put(fileName, status);
+            if (status.equals("store complete") && getChunkOwner(fileName) == null) listed.add(fileName);
+            else listed.remove(fileName);
+        }
+
+        /**
+         * A page of the listed files, in order.
+         * @param prefix Only files starting with this
+         * @param after Only files after this, or null to start from the first
+         * @param limit Most files to return
+         * @param page Where the files are added
+         * @return Whether there are more files after the page
+         */
+        public boolean listPage(String prefix, String after, int limit, List<String> page) {
+            NavigableSet<String> tail = after != null && after.compareTo(prefix) >= 0 ? listed.tailSet(after, false) : listed.tailSet(prefix, true);
+            for (String fileName : tail) {
+                if (!fileName.startsWith(prefix)) return false;
+                if (page.size() == limit) return true;
+                page.add(fileName);
+            }
+            return false;
+        }
+
         public String getFileStatus(String fileName) { return fileStatus.get(fileName); }
-        public Integer getFileSize(String fileName) { return fileSizes.get(fileName); }
+        public Long getFileSize(String fileName) { return fileSizes.get(fileName); }
         public ArrayList<DstoreCon> getFileDstores(String fileName) { return fileDstores.get(fileName); }
-        public ArrayList<String> getDstoreFiles(DstoreCon dStore) { return dStoreFiles.get(dStore); }
+        public Set<String> getDstoreFiles(DstoreCon dStore) { return dStoreFiles.get(dStore); }
+
+        public Long getChunkSize(String fileName) { return chunkSizes.get(fileName); }
+
+        /**
+         * Names of the files that make up a file on the Dstores: its chunks if it was stored in chunks, or else just itself.
+         */
+        public List<String> getParts(String fileName) {
+            Long fileChunkSize = chunkSizes.get(fileName), size = fileSizes.get(fileName);
+            if (fileChunkSize == null || size == null) return List.of(fileName);
+            return chunkNames(fileName, size, fileChunkSize);
+        }
+
+        /**
+         * @return The file that this is a chunk of, or null if it isn't a chunk
+         */
+        public String getChunkOwner(String fileName) {
+            int separator = fileName.lastIndexOf(CHUNK_SEPARATOR);
+            if (separator < 0) return null;
+            String owner = fileName.substring(0, separator);
+            Long fileChunkSize = chunkSizes.get(owner), size = fileSizes.get(owner);
+            if (fileChunkSize == null || size == null) return null;
+            try {
+                int chunk = Integer.parseInt(fileName.substring(separator + 1));
+                return chunk >= 0 && chunk < chunkCount(size, fileChunkSize) && fileName.equals(chunkName(owner, chunk)) ? owner : null;
+            } catch (NumberFormatException e) { return null; }
+        }
+
+        static String chunkName(String fileName, int chunk) { return fileName + CHUNK_SEPARATOR + chunk; }
+        static int chunkCount(long size, long chunkSize) { return (int) Math.max(1, (size + chunkSize - 1) / chunkSize); }
+        static long chunkLength(long size, long chunkSize, int chunk) { return Math.min(chunkSize, size - chunk * chunkSize); }
+        static List<String> chunkNames(String fileName, long size, long chunkSize) {
+            ArrayList<String> names = new ArrayList<>();
+            for (int i = 0; i < chunkCount(size, chunkSize); i++) names.add(chunkName(fileName, i));
+            return names;
+        }
 
         public Set<DstoreCon> getDStoreSet() { return dStoreFiles.keySet(); }
-        public ArrayList<DstoreCon> getDStoreListSorted() {
-            return new ArrayList<>(index.getDStoreSet().stream().sorted(Comparator.comparing(this::getFileNumInDstore)).toList());
-        }        
         public Set<String> getFileSet() { return fileStatus.keySet(); }
-        public Integer getFileNumInDstore(DstoreCon dStore) { return getDstoreFiles(dStore).size(); }
         public Integer getDstoreNum() { return dStoreFiles.keySet().size(); }
     }
 }
\ No newline at end of file
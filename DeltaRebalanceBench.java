@@ -0,0 +1,199 @@
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Times the Controller's periodic rebalance through the delta path, against an in-process Controller and simulated Dstores.
+ * Each simulated Dstore JOINs with its share of the files, keeps a journal like a real Dstore's and answers LIST_SINCE from it,
+ * and carries out a REBALANCE by moving the files between the simulated Dstores' inventories, without sending any data.
+ * Each timed round starts with some churn. Every change is applied as the Dstores receive the round's LIST_SINCE, so all
+ * of it lands in that round. Half the changes drop a file from a Dstore, which then has to be repaired. The other half add
+ * a file the Controller doesn't know, which then has to be removed. A round is timed from its first LIST_SINCE to the last
+ * REBALANCE a Dstore receives in it, which covers collecting the replies, planning and sending the REBALANCEs.
+ * With "full", the Dstores always reply LIST_FULL, as if their journals never reached back, which is what the Controller
+ * did on every rebalance before the delta path.
+ *
+ * Usage: java -Xmx3g DeltaRebalanceBench [files] [dstores] [rounds] [churn] [delta|full]
+ */
+class DeltaRebalanceBench {
+    private static final int CPORT = 12399;
+    private static final int REPLICATION = 3;
+    private static final long FILE_SIZE = 1000;
+    private static final int PERIOD = 2;
+
+    private static final AtomicLong firstListSince = new AtomicLong(), lastRebalance = new AtomicLong();
+    private static final HashMap<Integer, FakeDstore> fleet = new HashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int dStores = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int churn = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        boolean full = args.length > 4 && args[4].equals("full");
+        if (System.getProperty("log.level") == null) System.setProperty("log.level", "ERROR");
+
+        Thread controller = new Thread(() -> new Controller(Integer.toString(CPORT), Integer.toString(REPLICATION), "60000", Integer.toString(PERIOD)), "Controller");
+        controller.setDaemon(true);
+        controller.start();
+        Thread.sleep(500);
+
+        ArrayList<List<String>> inventories = new ArrayList<>();
+        for (int d = 0; d < dStores; d++) inventories.add(new ArrayList<>());
+        for (int f = 0; f < files; f++) for (int r = 0; r < REPLICATION; r++) inventories.get((f + r) % dStores).add("file" + f);
+        long start = System.nanoTime();
+        for (int d = 0; d < dStores; d++) {
+            FakeDstore dStore = new FakeDstore(20000 + d, full);
+            synchronized (fleet) { fleet.put(dStore.port, dStore); }
+            dStore.join(inventories.get(d));
+        }
+        inventories.clear();
+        nextRound();
+        takeMoves();
+        do nextRound(); while (takeMoves() > 0); //Until every Dstore has JOINed and a rebalance has nothing left to move
+        System.out.printf("%,d files at R=%d on %d Dstores joined and settled in %.1fs%n", files, REPLICATION, dStores, (System.nanoTime() - start) / 1e9);
+
+        Random random = new Random(1);
+        for (int round = 0; round < rounds; round++) {
+            for (int c = 0; c < churn; c++) {
+                FakeDstore dStore = fleet.get(20000 + random.nextInt(dStores));
+                synchronized (dStore.pending) { dStore.pending.add(c % 2 == 0 ? "-file" + random.nextInt(files) : "+stray" + round + "-" + c); }
+            }
+            long begin = nextRound();
+            takeMoves();
+            lastRebalance.set(0);
+            nextRound(); //Which only starts once this one is over
+            System.out.printf("Round %d, %d changes: %.0fms, %d files sent or removed%n", round, churn, (lastRebalance.get() - begin) / 1e6, takeMoves());
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Wait for a rebalance to start, and for every Dstore to have been asked for its changes in it.
+     * Called between rebalances, or just after one has started.
+     * @return When the first Dstore was asked, in nanoseconds
+     */
+    private static long nextRound() throws InterruptedException {
+        firstListSince.set(0);
+        HashMap<FakeDstore, Long> seen = new HashMap<>();
+        for (FakeDstore dStore : fleet.values()) seen.put(dStore, dStore.listSinces.get());
+        while (seen.entrySet().stream().anyMatch(x -> x.getKey().listSinces.get() == x.getValue())) Thread.sleep(1);
+        return firstListSince.get();
+    }
+
+    /** Files sent or removed since the last call */
+    private static long takeMoves() {
+        long moves = 0;
+        for (FakeDstore dStore : fleet.values()) moves += dStore.moves.getAndSet(0);
+        return moves;
+    }
+
+    /**
+     * A Dstore that holds names rather than files, speaking just enough of the protocol to take part in rebalances.
+     */
+    private static class FakeDstore {
+        private final int port;
+        private final boolean full;
+        private final long epoch = new Random().nextLong() & Long.MAX_VALUE;
+        private final HashSet<String> inventory = new HashSet<>();
+        private final ArrayDeque<String> journal = new ArrayDeque<>(); //Unbounded, unlike a real Dstore's
+        private final List<String> pending = new ArrayList<>(); //Churn to apply on the next LIST_SINCE
+        private final AtomicLong moves = new AtomicLong(), listSinces = new AtomicLong();
+        private long version = 0;
+        private PrintWriter out;
+
+        FakeDstore(int port, boolean full) {
+            this.port = port;
+            this.full = full;
+        }
+
+        void join(List<String> files) throws Exception {
+            Socket socket = new Socket("localhost", CPORT);
+            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+            StringBuilder join = new StringBuilder("JOIN " + port);
+            for (String file : files) join.append(' ').append(file).append(' ').append(FILE_SIZE);
+            inventory.addAll(files);
+            send(join.toString());
+            send("STATUS " + (1L << 40) + " " + files.size() * FILE_SIZE + " 0 0");
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            Thread reader = new Thread(() -> {
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        String[] segments = line.split(" ");
+                        if (segments[0].equals("LIST_SINCE")) listSince(Long.parseLong(segments[1]), Long.parseLong(segments[2]));
+                        if (segments[0].equals("REBALANCE")) rebalance(segments);
+                    }
+                } catch (Exception e) { e.printStackTrace(); }
+            }, "Dstore" + port);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private synchronized void send(String message) { out.println(message); }
+
+        private synchronized void change(String change) {
+            String file = change.substring(1);
+            if (change.charAt(0) == '+' ? !inventory.add(file) : !inventory.remove(file)) return;
+            journal.add(change);
+            version++;
+        }
+
+        private void listSince(long knownEpoch, long knownVersion) {
+            firstListSince.compareAndSet(0, System.nanoTime());
+            listSinces.incrementAndGet();
+            List<String> churn;
+            synchronized (pending) {
+                churn = new ArrayList<>(pending);
+                pending.clear();
+            }
+            for (String change : churn) change(change);
+            StringBuilder reply = new StringBuilder();
+            synchronized (this) {
+                if (!full && knownEpoch == epoch && knownVersion >= version - journal.size() && knownVersion <= version) {
+                    while (version - journal.size() < knownVersion) journal.poll();
+                    reply.append("LIST_DELTA ").append(epoch).append(' ').append(version);
+                    for (String change : journal) reply.append(' ').append(change);
+                } else {
+                    journal.clear();
+                    reply.append("LIST_FULL ").append(epoch).append(' ').append(version);
+                    for (String file : inventory) reply.append(' ').append(file);
+                }
+            }
+            send(reply.toString());
+        }
+
+        /**
+         * "REBALANCE *files_to_send* *file* *ports_to_send_to* *port* ... *files_to_remove* *file* ... [*repairs*]"
+         */
+        private void rebalance(String[] segments) {
+            lastRebalance.accumulateAndGet(System.nanoTime(), Math::max);
+            int next = 1;
+            int filesToSend = Integer.parseInt(segments[next++]);
+            for (int i = 0; i < filesToSend; i++) {
+                String file = segments[next++];
+                int receivers = Integer.parseInt(segments[next++]);
+                for (int j = 0; j < receivers; j++) {
+                    FakeDstore receiver;
+                    synchronized (fleet) { receiver = fleet.get(Integer.parseInt(segments[next++])); }
+                    receiver.change("+" + file);
+                    moves.incrementAndGet();
+                }
+            }
+            int filesToRemove = Integer.parseInt(segments[next++]);
+            for (int i = 0; i < filesToRemove; i++) {
+                change("-" + segments[next++]);
+                moves.incrementAndGet();
+            }
+            send("REBALANCE_COMPLETE");
+        }
+    }
+}
@@ -1,64 +1,140 @@
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.stream.Collectors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
 
 class Dstore {
 
-    private ControllerConnection controller;
+    private volatile ControllerConnection controller;
     private int timeout;
     private File folder;
     private ServerSocket serverSocket;
-    private ArrayList<ClientConnection> clientsList;
+    private List<ClientConnection> clientsList;
     private HashMap<String, File> fileIndex;
-    private HashMap<String, Integer> fileSizes;
-    private HashMap<String, ReentrantLock> fileLocks;
-    private final ReentrantLock rebalanceLock = new ReentrantLock();
+    private HashMap<String, Long> fileSizes;
+    private HashMap<String, ReentrantReadWriteLock> fileLocks;
+    private final ReentrantLock rebalanceLock = new ReentrantLock(); //One REBALANCE at a time, the Controller fences the files it moves
+
+    /** Bytes read at a time when storing a file (or working out its checksum) */
+    private static final int STORE_BUFFER = 256 * 1024;
+    /** Maximum number of rebalance sends to other Dstores running at once */
+    private static final int TRANSFER_THREADS = 8;
+    private final ExecutorService transferExecutor = Executors.newFixedThreadPool(TRANSFER_THREADS);
+    /** Most files, and bytes of them, sent to another Dstore in one rebalance batch */
+    private static final int BATCH_FILES = 100;
+    private static final long BATCH_BYTES = 64L << 20;
+    private LinkPool peers; //Connections to other Dstores, kept open between rebalance batches
+    private final RateLimiter rebalanceLimit = new RateLimiter(Long.getLong("dstore.rebalanceRate", 0)); //Bytes per second of rebalance sends, 0 for no limit
+    /** Folder (inside the file folder) that files are written to before being moved into place once complete */
+    private static final String INCOMING = ".incoming";
+    private File incoming;
+    /** Folder (inside the file folder) holding the CRC32C of each file, in hex, under the file's name */
+    private static final String CHECKSUMS = ".checksums";
+    private File checksums;
+    private HashMap<String, Integer> fileChecksums; //Only files whose checksum has been worked out
+    private final boolean verifyOnStart = Boolean.getBoolean("dstore.verify"); //Check every file against its checksum on a warm start
+    /** Folder (inside the file folder) holding each distinct file content once, under its SHA-256 in hex, when deduplicating */
+    private static final String BLOBS = ".blobs";
+    private File blobs;
+    private final boolean dedup = Boolean.getBoolean("dstore.dedup"); //Store files by content hash, linked to from their names
+    private final HashMap<String, String> fileBlobs = new HashMap<>(); //File name -> hash of its blob, guarded by blobRefs
+    private final HashMap<String, Integer> blobRefs = new HashMap<>(); //Hash -> number of file names linked to the blob
+    private final boolean compress = Boolean.getBoolean("dstore.compress"); //Compress files on disk that compress well
+    private final long compressMin = Long.getLong("dstore.compressMin", 4096); //Smallest file worth compressing
+    private final HashMap<String, Long> diskSizes = new HashMap<>(); //Bytes on disk of files that aren't their size (compressed), guarded by fileSizes
+    private final FileCache cache = new FileCache(Long.getLong("dstore.cacheSize", 64L << 20)); //Contents of hot files, off-heap
+    /** Seconds between STATUS reports to the Controller */
+    private static final int STATUS_PERIOD = 10;
+    private final ScheduledExecutorService statusScheduler = Executors.newSingleThreadScheduledExecutor();
+    private final long configuredCapacity = Long.getLong("dstore.capacity", 0); //Bytes this Dstore may hold (-Ddstore.capacity), 0 for the disk's free space
+    private final AtomicInteger activeLoads = new AtomicInteger(); //Client LOAD_DATAs being served
+    private final boolean binary = Boolean.parseBoolean(System.getProperty("dstore.binary", "true")); //Offer Wire frames to the Controller and other Dstores
+    /** Most changes kept for LIST_SINCE, beyond which the Controller is sent the full list instead */
+    private static final int MAX_JOURNAL = 100000;
+    private final long epoch = new Random().nextLong() & Long.MAX_VALUE; //Identifies this run's journal to the Controller
+    private long version = 0; //Number of changes made this run
+    private final ArrayDeque<String> journal = new ArrayDeque<>(); //"+file" or "-file" for the latest changes, up to version
 
     public static void main(String[] args) {
-        if (args.length != 4) {
-           System.out.println("Arguments should be formatted like so:\nDstore port cport timeout file_folder");
+        if (args.length != 4 && args.length != 5) {
+           System.out.println("Arguments should be formatted like so:\nDstore port cport timeout file_folder [cold|warm]");
         }
-        new Dstore(args[0], args[1], args[2], args[3]);
+        new Dstore(args[0], args[1], args[2], args[3], args.length > 4 ? args[4] : "cold");
     }
-    
+
     public Dstore(String portStr, String cportStr, String timeoutStr, String file_folder) {
+        this(portStr, cportStr, timeoutStr, file_folder, "cold");
+    }
+    
+    /**
+     * @param startMode "cold" to empty the file folder on startup, "warm" to keep the files in it and tell the Controller about them on JOIN
+     */
+    public Dstore(String portStr, String cportStr, String timeoutStr, String file_folder, String startMode) {
         if (portStr.isEmpty() || cportStr.isEmpty() || timeoutStr.isEmpty() || file_folder.isEmpty()) {
             Logger.err("Argument was empty.", new Exception(), this);
             return;
         }
 
         int port, cport;
-        clientsList = new ArrayList<>();
+        clientsList = Collections.synchronizedList(new ArrayList<>()); //Connections remove themselves as they close
         fileIndex = new HashMap<>();
         fileLocks = new HashMap<>();
         fileSizes = new HashMap<>();
+        fileChecksums = new HashMap<>();
 
         try {
             port = Integer.parseInt(portStr);
             cport = Integer.parseInt(cportStr);
             timeout = Integer.parseInt(timeoutStr);
+            peers = new LinkPool(timeout, binary);
+            if (!startMode.equals("cold") && !startMode.equals("warm")) throw new NumberFormatException("Unknown start mode: " + startMode);
         } catch (NumberFormatException e) {
             Logger.err("Could not create the Dstore, incorrect argument format", e, this);
             return;
         } 
         
-        try { setupFolder(folder = new File(file_folder)); } 
+        try { setupFolder(folder = new File(file_folder), startMode.equals("warm")); } 
         catch (Exception e) { 
             Logger.err("Problem creating the file folder: " + file_folder, e, this);
             return;
@@ -73,53 +149,350 @@ class Dstore {
          */
         Logger.info("Setup complete, starting connections", this);
         try {
+            awaitClientConnections(port); //Listening before JOINing, since the Controller can send clients here straight away
             Socket socket = new Socket("localhost", cport);
-            controller = new ControllerConnection(socket, port, this);
-            awaitClientConnections(port);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            new ControllerConnection(socket, in, binary && Wire.negotiate(in, socket.getOutputStream()), port, this);
         } catch (Exception e) {
             Logger.err("A problem occured while trying to set up connections", e, this);
         }
     }
 
     /**
-     * Attempt to store the file
-     * @param file The byte array that represents the file
+     * Attempt to store the file, streaming it to disk a buffer at a time while its CRC32C is worked out, and if given a channel
+     * to the next Dstore in a chain, forwarding every buffer to it as it arrives. With -Ddstore.compress=true it is compressed
+     * on disk if it is big enough and compresses well.
+     * If anything goes wrong the file is left as it was before (or absent), so a failed store is never listed or loaded.
+     * @param inStream The stream that the file's bytes are read from
      * @param fileName Name of file
      * @param fileSize Size of file (in bytes)
+     * @param forward Where to send a copy of the bytes, or null
+     * @param expectedChecksum Checksum the sender worked out, or null if it didn't send one
+     * @param deflated Whether the bytes are sent as a deflate stream
+     * @return The file's checksum, or null if it couldn't be stored (including when it didn't match expectedChecksum)
      */
-    public void storeFile(byte[] fileBytes, String fileName, int fileSize, boolean ack) {
+    public Integer storeFile(InputStream inStream, String fileName, long fileSize, WritableByteChannel forward, Integer expectedChecksum, boolean deflated) {
+        return store(fileName, fileSize, () -> {
+            File partFile = File.createTempFile("store", ".part", incoming);
+            try (InputStream in = deflated ? Compression.inflating(inStream) : null) {
+                CRC32C crc = new CRC32C();
+                MessageDigest digest = dedup ? MessageDigest.getInstance("SHA-256") : null;
+                try (Compression.Writer out = new Compression.Writer(new FileOutputStream(partFile).getChannel(), fileSize, compress ? compressMin : -1)) {
+                    receive(Channels.newChannel(in != null ? in : inStream), out, forward, fileSize, crc, digest);
+                }
+                int checksum = (int) crc.getValue();
+                if (expectedChecksum != null && expectedChecksum != checksum) throw new IOException("Checksum mismatch for " + fileName + ": got " + Integer.toHexString(checksum) + ", expected " + Integer.toHexString(expectedChecksum));
+                //Only complete files ever appear in the folder, so a warm restart never picks up a partial one
+                if (digest == null) Files.move(partFile.toPath(), new File(folder, fileName).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                else addBlob(fileName, partFile, HexFormat.of().formatHex(digest.digest()));
+                return checksum;
+            } finally { partFile.delete(); }
+        });
+    }
+
+    /**
+     * Store a file whose content this Dstore already holds as a blob, under another name, without transferring it.
+     * @return The file's checksum, or null if it couldn't be stored (including when the blob isn't held)
+     */
+    public Integer storeFromBlob(String fileName, long fileSize, int checksum, String hash) {
+        return store(fileName, fileSize, () -> {
+            linkBlob(fileName, hash);
+            return checksum;
+        });
+    }
+
+    private interface FileWriter { int write() throws Exception; }
+
+    /**
+     * Add a file to the index and write it, putting back whatever was there before if writing fails.
+     * @param writer Puts the file in the folder and returns its checksum
+     */
+    private Integer store(String fileName, long fileSize, FileWriter writer) {
+        File newFile = new File(folder, fileName);
+        ReentrantReadWriteLock fileLock;
+        File oldFile;
+        ReentrantReadWriteLock oldLock;
+        Long oldSize;
+        Integer oldChecksum;
+        Long oldDiskSize;
+        while (true) { //Share the file's lock with loaders, retrying if a remove drops it while we wait
+            synchronized (fileLocks) {
+                oldLock = fileLocks.get(fileName);
+                fileLock = fileLocks.computeIfAbsent(fileName, x -> new ReentrantReadWriteLock());
+            }
+            fileLock.writeLock().lock();
+            synchronized (fileLocks) { if (fileLocks.get(fileName) == fileLock) break; }
+            fileLock.writeLock().unlock();
+        }
+        cache.invalidate(fileName);
+        synchronized (fileIndex) { oldFile = fileIndex.put(fileName, newFile); }
+        synchronized (fileSizes) {
+            oldSize = fileSizes.put(fileName, fileSize);
+            oldDiskSize = diskSizes.remove(fileName);
+        }
+        synchronized (fileChecksums) { oldChecksum = fileChecksums.remove(fileName); }
+        boolean stored = false;
         try {
-            rebalanceLock.lock();
-            rebalanceLock.unlock();
-            ReentrantLock fileLock;
-            File newFile = new File(folder, fileName);
-            synchronized (fileIndex) { fileIndex.put(fileName, newFile); }
-            synchronized (fileLocks) { fileLocks.put(fileName, fileLock = new ReentrantLock()); }
-            synchronized (fileSizes) { fileSizes.put(fileName, fileSize); }
-            fileLock.lock();
-            FileOutputStream fs = new FileOutputStream(newFile);
-            fs.write(fileBytes);
-            fs.close();
-            if (ack) controller.sendMessage("STORE_ACK " + fileName);
-            fileLock.unlock();
+            int checksum = writer.write();
+            long diskSize = newFile.length();
+            if (diskSize != fileSize) synchronized (fileSizes) { diskSizes.put(fileName, diskSize); }
+            setChecksum(fileName, checksum);
+            stored = true;
+            recordChange("+" + fileName);
+            return checksum;
         } catch (Exception e) {
             Logger.err("Storing file failed.", e, this);
+            return null;
+        } finally {
+            if (!stored) { //Put back whatever was there before
+                synchronized (fileIndex) { restore(fileIndex, fileName, oldFile); }
+                synchronized (fileLocks) { restore(fileLocks, fileName, oldLock); }
+                synchronized (fileSizes) {
+                    restore(fileSizes, fileName, oldSize);
+                    restore(diskSizes, fileName, oldDiskSize);
+                }
+                synchronized (fileChecksums) { restore(fileChecksums, fileName, oldChecksum); }
+            }
+            fileLock.writeLock().unlock();
         }
     }
 
     /**
-     * Load a file, return on error or completion
+     * Make a newly received file the blob for its content (unless an identical blob is already held, in which case it's
+     * dropped), and link the file name to it.
+     * @param partFile The received file, deleted by the caller if not moved
+     * @param hash SHA-256 of its content, in hex
+     */
+    private void addBlob(String fileName, File partFile, String hash) throws IOException {
+        synchronized (blobRefs) {
+            File blob = new File(blobs, hash);
+            if (!blobRefs.containsKey(hash)) Files.move(partFile.toPath(), blob.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            try { linkBlob(fileName, hash); }
+            finally { if (!blobRefs.containsKey(hash)) blob.delete(); } //Linking failed and nothing else uses it
+        }
+    }
+
+    /**
+     * Point a file name at a blob, as a hard link in the folder (so a warm start finds it like any other file),
+     * and count the reference. Whatever blob the name pointed at before loses a reference.
+     */
+    private void linkBlob(String fileName, String hash) throws IOException {
+        synchronized (blobRefs) {
+            File blob = new File(blobs, hash);
+            if (!blob.isFile()) throw new FileNotFoundException("No blob for " + hash);
+            File link = File.createTempFile("link", ".part", incoming);
+            link.delete();
+            Files.createLink(link.toPath(), blob.toPath());
+            Files.move(link.toPath(), new File(folder, fileName).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            blobRefs.merge(hash, 1, Integer::sum);
+            String oldHash = fileBlobs.put(fileName, hash);
+            if (oldHash != null) releaseBlob(oldHash);
+        }
+    }
+
+    /**
+     * Drop a reference to a blob, deleting it once nothing uses it. Must hold blobRefs.
+     */
+    private void releaseBlob(String hash) {
+        if (blobRefs.merge(hash, -1, Integer::sum) > 0) return;
+        blobRefs.remove(hash);
+        new File(blobs, hash).delete();
+    }
+
+    private static <V> void restore(Map<String, V> map, String key, V oldValue) {
+        if (oldValue == null) map.remove(key);
+        else map.put(key, oldValue);
+    }
+
+    /**
+     * Copy a file into out a buffer at a time, adding each buffer to the checksum, and sending it on to the next Dstore
+     * (if there is one) before writing it to disk. CRC32C is intrinsified on x86 and ARM, so this keeps up with the network.
+     * The content hash (for deduplication) is also worked out if a digest is given.
+     */
+    private static void receive(ReadableByteChannel in, WritableByteChannel out, WritableByteChannel forward, long fileSize, CRC32C crc, MessageDigest digest) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(STORE_BUFFER);
+        long position = 0;
+        while (position < fileSize) {
+            buffer.clear().limit((int) Math.min(STORE_BUFFER, fileSize - position));
+            int read = in.read(buffer);
+            if (read < 0) throw new IOException("Connection closed after " + position + " of " + fileSize + " bytes");
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            if (digest != null) digest.update(buffer.duplicate());
+            if (forward != null) {
+                ByteBuffer copy = buffer.duplicate();
+                while (copy.hasRemaining()) forward.write(copy);
+            }
+            while (buffer.hasRemaining()) out.write(buffer);
+            position += read;
+        }
+    }
+
+    /**
+     * The CRC32C of a stored file, worked out (and saved) now if it isn't known yet.
+     * @param fileName Name of file
+     * @return The checksum, or null if the file isn't stored here
+     */
+    public Integer getChecksum(String fileName) throws IOException {
+        synchronized (fileChecksums) { if (fileChecksums.containsKey(fileName)) return fileChecksums.get(fileName); }
+        File file;
+        ReentrantReadWriteLock fileLock;
+        synchronized (fileIndex) { file = fileIndex.get(fileName); }
+        synchronized (fileLocks) { fileLock = fileLocks.get(fileName); }
+        if (file == null || fileLock == null) return null;
+        fileLock.readLock().lock();
+        try {
+            int checksum = checksumOf(file);
+            setChecksum(fileName, checksum);
+            return checksum;
+        } finally { fileLock.readLock().unlock(); }
+    }
+
+    private static int checksumOf(File file) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (ReadableByteChannel in = Channels.newChannel(Compression.open(file))) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(STORE_BUFFER);
+            while (in.read(buffer.clear()) >= 0) crc.update(buffer.flip());
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Remember a file's checksum, and save it next to the file (in the checksums folder) for a warm restart.
+     */
+    private void setChecksum(String fileName, int checksum) throws IOException {
+        synchronized (fileChecksums) { fileChecksums.put(fileName, checksum); }
+        File tmp = File.createTempFile("checksum", ".part", incoming);
+        Files.writeString(tmp.toPath(), Integer.toHexString(checksum));
+        Files.move(tmp.toPath(), new File(checksums, fileName).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load a whole file, return on error or completion.
      * @param fileName Name of file to load
-     * @param client Client to send data to
+     * @param socket Socket to send data to
+     * @return Number of bytes sent
+     */
+    public long loadFile(String fileName, Socket socket) throws Exception {
+        return loadFile(fileName, socket, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Load a byte range of a file, return on error or completion.
+     * Only the file's read lock is held while sending, so loads of any files can run concurrently.
+     * Where the socket has a channel the data is sent with transferTo (sendfile) without copying through the heap,
+     * unless the file is compressed on disk, when it is inflated on the way out. Hot files are sent from the cache instead.
+     * @param fileName Name of file to load
+     * @param socket Socket to send data to
+     * @param offset Position in the file to start sending from
+     * @param length Maximum number of bytes to send (cut short at the end of the file)
+     * @return Number of bytes sent
+     */
+    public long loadFile(String fileName, Socket socket, long offset, long length) throws Exception {
+        return loadFile(fileName, channelOf(socket), offset, length);
+    }
+
+    /**
+     * Load a byte range of a file to a channel, as loadFile does to a socket.
+     */
+    private long loadFile(String fileName, WritableByteChannel out, long offset, long length) throws Exception {
+        File file;
+        ReentrantReadWriteLock fileLock;
+        synchronized (fileIndex) { file = fileIndex.get(fileName); }
+        synchronized (fileLocks) { fileLock = fileLocks.get(fileName); }
+        if (file == null || fileLock == null) throw new FileNotFoundException("File is not stored on this Dstore: " + fileName);
+
+        fileLock.readLock().lock();
+        try {
+            ByteBuffer content = cache.isEnabled() ? cached(fileName, file) : null;
+            if (content == null) return loadFromDisk(fileName, file, out, offset, length);
+            if (offset < 0 || length < 0 || offset > content.capacity()) throw new IOException("Range out of bounds: " + offset + " " + length);
+            content.position((int) offset).limit((int) (offset + Math.min(length, content.capacity() - offset)));
+            long sent = content.remaining();
+            while (content.hasRemaining()) out.write(content);
+            return sent;
+        } finally { fileLock.readLock().unlock(); }
+    }
+
+    /**
+     * A file's content from the cache, read into it now if it is worth caching. Must hold the file's lock.
+     * @return The content, or null if it isn't cached
      */
-    public void loadFile(String fileName, OutputStream outStream) throws Exception {
-        byte[] data;
-        synchronized (fileIndex) {
-            FileInputStream fStream = new FileInputStream(fileIndex.get(fileName));
-            data = fStream.readAllBytes();
-            fStream.close();
+    private ByteBuffer cached(String fileName, File file) throws IOException {
+        ByteBuffer content = cache.get(fileName);
+        if (content != null) return content;
+        Long size;
+        synchronized (fileSizes) { size = fileSizes.get(fileName); }
+        if (size == null || !cache.wouldAdmit(fileName, size)) return null;
+        content = ByteBuffer.allocateDirect(size.intValue());
+        try (ReadableByteChannel in = Channels.newChannel(Compression.open(file))) {
+            while (content.hasRemaining()) if (in.read(content) < 0) throw new EOFException("File ended early: " + fileName);
+        }
+        cache.put(fileName, content.flip());
+        return content.duplicate();
+    }
+
+    private long loadFromDisk(String fileName, File file, WritableByteChannel out, long offset, long length) throws IOException {
+        try (FileChannel fc = new FileInputStream(file).getChannel()) {
+            boolean compressed = Compression.isCompressed(fc);
+            long size = compressed ? Compression.rawSize(file) : fc.size();
+            if (offset < 0 || length < 0 || offset > size) throw new IOException("Range out of bounds: " + offset + " " + length);
+            long end = offset + Math.min(length, size - offset), position = offset;
+            if (compressed) {
+                try (InputStream in = Compression.open(file)) {
+                    in.skipNBytes(offset);
+                    OutputStream socketOut = Channels.newOutputStream(out);
+                    byte[] buffer = new byte[STORE_BUFFER];
+                    while (position < end) {
+                        int read = in.readNBytes(buffer, 0, (int) Math.min(buffer.length, end - position));
+                        if (read == 0) throw new EOFException("Compressed file ended early: " + fileName);
+                        socketOut.write(buffer, 0, read);
+                        position += read;
+                    }
+                }
+            } else while (position < end) position += transfer(fc, position, end - position, out);
+            return end - offset;
         }
-        outStream.write(data);
+    }
+
+    /**
+     * Load a whole file as a deflate stream. A file compressed on disk is sent as it is, with transferTo.
+     * @param fileName Name of file to load
+     * @param socket Socket to send data to
+     * @return Number of bytes sent
+     */
+    public long loadDeflated(String fileName, Socket socket) throws Exception {
+        return loadDeflated(fileName, channelOf(socket));
+    }
+
+    private long loadDeflated(String fileName, WritableByteChannel out) throws Exception {
+        File file;
+        ReentrantReadWriteLock fileLock;
+        synchronized (fileIndex) { file = fileIndex.get(fileName); }
+        synchronized (fileLocks) { fileLock = fileLocks.get(fileName); }
+        if (file == null || fileLock == null) throw new FileNotFoundException("File is not stored on this Dstore: " + fileName);
+
+        fileLock.readLock().lock();
+        try (FileChannel fc = new FileInputStream(file).getChannel()) {
+            if (!Compression.isCompressed(fc)) return Compression.deflate(Channels.newInputStream(fc), Channels.newOutputStream(out));
+            long position = Compression.HEADER;
+            while (position < fc.size()) position += transfer(fc, position, fc.size() - position, out);
+            return fc.size() - Compression.HEADER;
+        } finally { fileLock.readLock().unlock(); }
+    }
+
+    /**
+     * transferTo, within the rate limit if the channel is throttled (which still sends from the file straight to its socket).
+     */
+    private static long transfer(FileChannel fc, long position, long count, WritableByteChannel out) throws IOException {
+        return out instanceof RateLimiter.Throttled throttled ? throttled.transferFrom(fc, position, count) : fc.transferTo(position, count, out);
+    }
+
+    /**
+     * The socket's channel where it has one, so that transferTo can send to it without copying.
+     */
+    private static WritableByteChannel channelOf(Socket socket) throws IOException {
+        return socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
     }
 
     /**
@@ -127,65 +500,270 @@ class Dstore {
      * @param fileName File to remove
      */
     public void removeFile(String fileName, boolean ack) {
-        rebalanceLock.lock();
-        rebalanceLock.unlock();
-        fileLocks.get(fileName).lock();
-        synchronized (fileIndex) {    
-            if (!fileIndex.keySet().contains(fileName)) {
-                if (ack) controller.sendMessage("ERROR_FILE_DOES_NOT_EXIST " + fileName);
-                fileLocks.get(fileName).unlock();
-                return;
-            }
-            if (fileIndex.get(fileName).delete()) {
+        ReentrantReadWriteLock fileLock;
+        synchronized (fileLocks) { fileLock = fileLocks.get(fileName); }
+        if (fileLock == null) {
+            if (ack) controller.sendFields("ERROR_FILE_DOES_NOT_EXIST", fileName);
+            return;
+        }
+        fileLock.writeLock().lock();
+        try {
+            synchronized (fileIndex) {
+                if (!fileIndex.keySet().contains(fileName)) {
+                    if (ack) controller.sendFields("ERROR_FILE_DOES_NOT_EXIST", fileName);
+                    return;
+                }
+                if (!fileIndex.get(fileName).delete()) {
+                    Logger.err("Could not delete the file: " + fileName, new Exception(), this);
+                    return;
+                }
                 fileIndex.remove(fileName);
-                if (ack) controller.sendMessage("REMOVE_ACK " + fileName);
-            } else {
-                Logger.err("Could not delete the file: " + fileName, new Exception(), this);
-                fileLocks.get(fileName).unlock();
-                return;
             }
-            fileLocks.get(fileName).unlock();
-            fileLocks.remove(fileName);
-        }
-        
+            cache.invalidate(fileName);
+            synchronized (fileSizes) {
+                fileSizes.remove(fileName);
+                diskSizes.remove(fileName);
+            }
+            synchronized (fileLocks) { fileLocks.remove(fileName); }
+            synchronized (fileChecksums) { fileChecksums.remove(fileName); }
+            new File(checksums, fileName).delete();
+            synchronized (blobRefs) {
+                String hash = fileBlobs.remove(fileName);
+                if (hash != null) releaseBlob(hash);
+            }
+        } finally { fileLock.writeLock().unlock(); }
+        recordChange("-" + fileName);
+        if (ack) controller.sendFields("REMOVE_ACK", fileName);
     }
 
     /**
      * Reply to the controller with all of the files that this Dstore has stored.
      */
     public void listFiles() {
-        String files = fileIndex.keySet().stream().collect(Collectors.joining(" "));
-        controller.sendMessage("LIST " + files);
-    }
-
-    public Boolean sendFile(String fileName, Integer port) {
-        fileLocks.get(fileName).lock();
-        try (Socket store = new Socket("localhost", port);
-            BufferedReader br = new BufferedReader(new InputStreamReader(store.getInputStream()));
-            PrintWriter pr = new PrintWriter(new OutputStreamWriter(store.getOutputStream()), true);) {
-            store.setSoTimeout(timeout);
-            pr.println("REBALANCE_STORE " + fileName + " " + fileSizes.get(fileName));
-            if (br.readLine().equals("ACK")) loadFile(fileName, store.getOutputStream());
+        ArrayList<String> reply = new ArrayList<>(List.of("LIST"));
+        synchronized (fileIndex) { reply.addAll(fileIndex.keySet()); }
+        controller.sendFields(reply);
+    }
+
+    /**
+     * How many bytes this Dstore can hold, how many it is using and how many client loads it is serving,
+     * and the rate its rebalance sends are limited to, as "STATUS *capacity* *used* *loads* *rebalance_rate*".
+     */
+    private String status() {
+        long used = 0;
+        synchronized (fileSizes) {
+            synchronized (blobRefs) {
+                HashSet<String> counted = new HashSet<>(); //Files sharing a blob only take up its space once
+                for (Map.Entry<String, Long> file : fileSizes.entrySet()) {
+                    String hash = fileBlobs.get(file.getKey());
+                    if (hash == null || counted.add(hash)) used += diskSizes.getOrDefault(file.getKey(), file.getValue());
+                }
+            }
+        }
+        long capacity = configuredCapacity > 0 ? configuredCapacity : folder.getUsableSpace() + used;
+        return "STATUS " + capacity + " " + used + " " + activeLoads.get() + " " + rebalanceLimit.getRate();
+    }
+
+    /**
+     * Note a file being added ("+file") or removed ("-file"), after the folder and fileIndex reflect it.
+     */
+    private void recordChange(String change) {
+        synchronized (journal) {
+            journal.add(change);
+            version++;
+            if (journal.size() > MAX_JOURNAL) journal.poll();
+        }
+    }
+
+    /**
+     * Reply to "LIST_SINCE *epoch* *version*" with the changes made since that version, or with every file
+     * if the journal no longer reaches back that far (or is from a previous run).
+     * Changes the Controller already knows about are dropped from the journal.
+     */
+    public void listFilesSince(long knownEpoch, long knownVersion) {
+        ArrayList<String> reply = new ArrayList<>();
+        synchronized (journal) {
+            if (knownEpoch == epoch && knownVersion >= version - journal.size() && knownVersion <= version) {
+                while (version - journal.size() < knownVersion) journal.poll();
+                reply.addAll(List.of("LIST_DELTA", Long.toString(epoch), Long.toString(version)));
+                reply.addAll(journal);
+            } else {
+                journal.clear();
+                reply.addAll(List.of("LIST_FULL", Long.toString(epoch), Long.toString(version)));
+                synchronized (fileIndex) { reply.addAll(fileIndex.keySet()); }
+            }
+        }
+        controller.sendFields(reply);
+    }
+
+    /**
+     * Send files to another Dstore for a rebalance, over a pooled connection, as
+     * "REBALANCE_BATCH *n*" followed by "*file* *size* *checksum* *hash* *deflate_length*" for each (the hash is the content hash
+     * if deduplicating and the deflate length is given if the file is compressed on disk and so sent as a deflate stream,
+     * otherwise they are "-"). It replies "NEED *i* ..." with the positions of the files it doesn't already hold (the same file or content),
+     * which are then sent one after another, and then "STORED *i* ..." with those that matched their checksum.
+     * The files are sent within the rebalance rate limit.
+     * @param repair Whether the files are short of replicas, so go ahead of other rebalance sends for the rate limit
+     * @return Whether the other Dstore has all of the files
+     */
+    public boolean sendFiles(List<String> fileNames, int port, boolean repair) {
+        ArrayList<String> names = new ArrayList<>(fileNames);
+        names.sort(null); //Locked in the same order by every send
+        ArrayList<ReentrantReadWriteLock> locks = new ArrayList<>();
+        Wire.Link link = null;
+        try {
+            ArrayList<String> message = new ArrayList<>(List.of("REBALANCE_BATCH", Integer.toString(names.size())));
+            long[] deflated = new long[names.size()];
+            for (int i = 0; i < names.size(); i++) {
+                String fileName = names.get(i);
+                ReentrantReadWriteLock fileLock;
+                synchronized (fileLocks) { fileLock = fileLocks.get(fileName); }
+                if (fileLock == null) throw new FileNotFoundException("File is not stored on this Dstore: " + fileName);
+                fileLock.readLock().lock();
+                locks.add(fileLock);
+                String hash;
+                synchronized (blobRefs) { hash = fileBlobs.get(fileName); }
+                long size;
+                Long diskSize;
+                synchronized (fileSizes) {
+                    size = fileSizes.get(fileName);
+                    diskSize = diskSizes.get(fileName); //Compressed on disk, so can be sent as it is
+                }
+                deflated[i] = diskSize == null ? -1 : diskSize - Compression.HEADER;
+                message.addAll(List.of(fileName, Long.toString(size), Integer.toHexString(getChecksum(fileName)),
+                    hash == null ? "-" : hash, deflated[i] < 0 ? "-" : Long.toString(deflated[i])));
+            }
+
+            link = peers.borrow(port);
+            link.send(message);
+            String[] need = link.receive();
+            if (need == null || !need[0].equals("NEED")) throw new IOException("Dstore " + port + " did not reply NEED");
+            WritableByteChannel out = rebalanceLimit.throttle(channelOf(link.socket()), repair);
+            for (int i = 1; i < need.length; i++) {
+                int file = Integer.parseInt(need[i]);
+                if (deflated[file] >= 0) loadDeflated(names.get(file), out);
+                else loadFile(names.get(file), out, 0, Long.MAX_VALUE);
+            }
+            String[] stored = link.receive();
+            if (stored == null || !stored[0].equals("STORED")) throw new IOException("Dstore " + port + " did not reply STORED");
+            if (stored.length != need.length) {
+                peers.discard(link); //It stopped reading part way through
+                Logger.info("Dstore " + port + " stored " + (stored.length - 1) + " of the " + (need.length - 1) + " files sent to it", this);
+                return false;
+            }
+            peers.release(link);
+            return true;
         } catch (Exception e) {
-            Logger.err("Could not send file to the other Dstore " + port, e, this);
+            if (link != null) peers.discard(link);
+            Logger.err("Could not send files to the other Dstore " + port, e, this);
             return false;
-        } finally { fileLocks.get(fileName).unlock(); }    
-        return true;
+        } finally { for (ReentrantReadWriteLock lock : locks) lock.readLock().unlock(); }
+    }
+
+    /**
+     * Whether a message received from another Dstore is the given one.
+     * @param message The message, or null if the connection closed
+     */
+    private static boolean isReply(String[] message, String... expected) {
+        return message != null && Arrays.equals(message, expected);
     }
 
     /**
-     * Create / empty the file (which should be a directory).
+     * Create / empty the file (which should be a directory), or on a warm start load the files already in it.
      * @param folder A File which references the folder that you want to use. It is emptied / created.
+     * @param warm Whether to keep the files already in the folder
      * @throws FileSystemException If the folder is unable to be emptied or created.
      * @throws SecurityException If a security manager exists and it denies access to a file.
      */
-    private void setupFolder(File folder) throws FileNotFoundException, SecurityException {
+    private void setupFolder(File folder, boolean warm) throws FileNotFoundException, SecurityException {
+        incoming = new File(folder, INCOMING);
+        checksums = new File(folder, CHECKSUMS);
+        blobs = new File(folder, BLOBS);
         if (folder.exists() && folder.isDirectory()) {
-            emptyDirectory(folder);
-            return;
+            if (warm) loadFolder(folder);
+            else emptyDirectory(folder);
+        } else if (!folder.mkdir()) throw new FileNotFoundException("Could not create new folder at this location: " + folder.getPath());
+
+        if (incoming.isDirectory()) emptyDirectory(incoming);
+        else if (!incoming.mkdir()) throw new FileNotFoundException("Could not create new folder at this location: " + incoming.getPath());
+        if (!checksums.isDirectory() && !checksums.mkdir()) throw new FileNotFoundException("Could not create new folder at this location: " + checksums.getPath());
+        if (dedup && !blobs.isDirectory() && !blobs.mkdir()) throw new FileNotFoundException("Could not create new folder at this location: " + blobs.getPath());
+        if (dedup) loadBlobs(folder);
+    }
+
+    /**
+     * Match the files in the folder to the blobs they are linked to, counting the references, and delete any blobs left
+     * unreferenced (by a crash, or files deleted while not deduplicating).
+     * @param folder The file folder
+     */
+    private void loadBlobs(File folder) {
+        HashMap<Object, String> hashes = new HashMap<>(); //File key (inode) -> hash
+        try {
+            for (File blob : blobs.listFiles()) hashes.put(Files.readAttributes(blob.toPath(), BasicFileAttributes.class).fileKey(), blob.getName());
+            for (String fileName : fileIndex.keySet()) {
+                String hash = hashes.get(Files.readAttributes(new File(folder, fileName).toPath(), BasicFileAttributes.class).fileKey());
+                if (hash == null) continue; //Stored without deduplication
+                fileBlobs.put(fileName, hash);
+                blobRefs.merge(hash, 1, Integer::sum);
+            }
+        } catch (IOException e) { Logger.err("Could not match files to their blobs", e, this); }
+        int unused = 0;
+        for (String hash : hashes.values()) if (!blobRefs.containsKey(hash) && new File(blobs, hash).delete()) unused++;
+        Logger.info("Deduplicating, " + fileBlobs.size() + " files share " + blobRefs.size() + " blobs, deleted " + unused + " unused ones", this);
+    }
+
+    /**
+     * Rebuild the file index from the files already in the folder, reading their sizes (from the header of compressed ones)
+     * and saved checksums in parallel.
+     * With -Ddstore.verify=true every file is also read and checked against its checksum, and any that don't match are deleted
+     * (so that the Controller replicates them here again). Otherwise checksums that weren't saved are worked out when first needed.
+     * @param folder The folder to scan
+     */
+    private void loadFolder(File folder) {
+        List<File> files = Arrays.stream(folder.listFiles()).parallel().filter(File::isFile).toList();
+        Map<String, Long> sizes = new ConcurrentHashMap<>();
+        Map<String, Integer> saved = new ConcurrentHashMap<>(), actual = new ConcurrentHashMap<>();
+        files.parallelStream().forEach(file -> {
+            sizes.put(file.getName(), file.length());
+            try {
+                sizes.put(file.getName(), Compression.rawSize(file));
+                File checksumFile = new File(folder, CHECKSUMS + File.separator + file.getName());
+                if (checksumFile.isFile()) saved.put(file.getName(), Integer.parseUnsignedInt(Files.readString(checksumFile.toPath()).trim(), 16));
+                if (verifyOnStart) actual.put(file.getName(), checksumOf(file));
+            } catch (IOException | NumberFormatException e) { Logger.err("Could not read the checksum of " + file.getName(), e, this); }
+        });
+        int corrupt = 0;
+        for (File file : files) {
+            String fileName = file.getName();
+            if (verifyOnStart && saved.containsKey(fileName) && !saved.get(fileName).equals(actual.get(fileName))) {
+                Logger.info("Checksum mismatch, deleting " + fileName, this);
+                file.delete();
+                new File(folder, CHECKSUMS + File.separator + fileName).delete();
+                corrupt++;
+                continue;
+            }
+            fileIndex.put(fileName, file);
+            fileLocks.put(fileName, new ReentrantReadWriteLock());
+            fileSizes.put(fileName, sizes.get(fileName));
+            if (file.length() != sizes.get(fileName)) diskSizes.put(fileName, file.length());
+            Integer checksum = verifyOnStart ? actual.get(fileName) : saved.get(fileName);
+            if (checksum != null) fileChecksums.put(fileName, checksum);
         }
+        Logger.info("Warm start, found " + (files.size() - corrupt) + " files" + (verifyOnStart ? ", deleted " + corrupt + " corrupt ones" : ""), this);
+    }
 
-        if (!folder.mkdir()) throw new FileNotFoundException("Could not create new folder at this location: " + folder.getPath());
+    /**
+     * The files held by this Dstore, as "*file_name* *file_size*" pairs of fields.
+     */
+    private List<String> inventory() {
+        ArrayList<String> inventory = new ArrayList<>();
+        synchronized (fileSizes) {
+            for (Map.Entry<String, Long> file : fileSizes.entrySet()) {
+                inventory.add(file.getKey());
+                inventory.add(Long.toString(file.getValue()));
+            }
+        }
+        return inventory;
     }
 
     /**
@@ -204,15 +782,17 @@ class Dstore {
      * Start a new Thread which just listens for new connections from clients and accepts them.
      * @param port The port that the server socket will be stationed on.
      */
-    private void awaitClientConnections(int port) {
+    private void awaitClientConnections(int port) throws IOException {
+        //Opened through a channel so that accepted sockets can use zero-copy transfers
+        serverSocket = ServerSocketChannel.open().socket();
+        serverSocket.bind(new InetSocketAddress(port));
         new Thread(() -> {
             try {
-                serverSocket = new ServerSocket(port);
                 int clients = 0;
                 while (true) {
                     Socket client = serverSocket.accept();
                     client.setSoTimeout(timeout);
-                    try { clientsList.add(new ClientConnection(client, "Client"+clients, this)); } 
+                    try { new ClientConnection(client, "Client"+clients, this); } //Adds itself to clientsList
                     catch (IOException e) { Logger.err("Something went wrong setting up the client connection", e, this); }
                     clients++;
                 }
@@ -231,6 +811,8 @@ class Dstore {
         Logger.info("Closing clients", this);
         ArrayList<ClientConnection> cli = new ArrayList<>(clientsList);
         for (ClientConnection client : cli) removeClient(client);
+        if (peers != null) peers.closeAll();
+        statusScheduler.shutdownNow();
 
         try { serverSocket.close(); }
         catch (Exception e) { Logger.err("Server socket could not be closed", e, this); }
@@ -250,9 +832,21 @@ class Dstore {
      */
     private class ControllerConnection extends ConnectionThread<Dstore> {
         
-        public ControllerConnection(Socket socket, int port, Dstore dstore) throws IOException {
-            super(socket, "Dstore"+port, dstore);
-            sendMessage("JOIN " + port);
+        /**
+         * @param in Stream the connection is read from, after offering frames
+         * @param binary Whether the Controller accepted frames
+         */
+        public ControllerConnection(Socket socket, InputStream in, boolean binary, int port, Dstore dstore) throws IOException {
+            super(socket, "Dstore"+port, in, binary, dstore);
+            dstore.controller = this; //Set before JOINing, the Controller's first LIST_SINCE can arrive before this returns
+            ArrayList<String> join = new ArrayList<>(List.of("JOIN", Integer.toString(port)));
+            join.addAll(dstore.inventory());
+            sendFields(join);
+            sendMessage(dstore.status());
+            dstore.statusScheduler.scheduleAtFixedRate(() -> {
+                try { sendMessage(dstore.status()); }
+                catch (Exception e) { Logger.err("Could not report status", e, this); }
+            }, STATUS_PERIOD, STATUS_PERIOD, TimeUnit.SECONDS);
         }
 
         @Override
@@ -261,64 +855,111 @@ class Dstore {
             server.closeAll();
         }
 
-        public void reveiveMessage(String message) {
-            if (message.startsWith("REMOVE")) requestRemove(message);
-            if (message.equals("LIST")) server.listFiles();
-            if (message.startsWith("REBALANCE")) rebalance(message);
+        public void reveiveMessage(String[] segments) {
+            String command = segments[0];
+            if (command.equals("REMOVE")) requestRemove(segments);
+            if (command.equals("LIST")) server.listFiles();
+            if (command.equals("LIST_SINCE")) server.listFilesSince(Long.parseLong(segments[1]), Long.parseLong(segments[2]));
+            //Off the reader, so that a THROTTLE can change the rate of a rebalance under way
+            if (command.equals("REBALANCE")) ConnectionThread.execute(name + "-Rebalance", () -> rebalance(segments));
+            if (command.equals("THROTTLE")) throttle(segments);
         }
 
-        private void rebalance(String message) {
+        /**
+         * Handle "REBALANCE *files_to_send* *file* *ports_to_send_to* *port* ... *files_to_remove* *file* ... [*repairs*]",
+         * read with a cursor through the fields so it takes time in proportion to its length.
+         * The first *repairs* files to send are short of replicas, and are sent ahead of the rest.
+         */
+        private void rebalance(String[] segments) {
             rebalanceLock.lock();
             try {
-                ArrayList<String> segments = new ArrayList<>(Arrays.asList(message.split(" ", 2)[1].split(" ")));
-                Integer filesToSendNum = Integer.parseInt(segments.get(0));
-                segments.remove(0);
+                int next = 1;
+                int filesToSendNum = Integer.parseInt(segments[next++]);
 
-                HashMap<String, ArrayList<Integer>> filesToSend = new HashMap<>();
+                ArrayList<String> filesToSend = new ArrayList<>();
+                HashMap<String, ArrayList<Integer>> sendTo = new HashMap<>();
                 for (int i = 0; i < filesToSendNum; i++) {
-                    String fileName = segments.get(0);
-                    segments.remove(0);
+                    String fileName = segments[next++];
                     ArrayList<Integer> dStores = new ArrayList<>();
-                    filesToSend.put(fileName, dStores);
-                    Integer numOfDstores = Integer.parseInt(segments.get(0));
-                    segments.remove(0);
-                    for (int j = 0; j < numOfDstores; j++) {
-                        dStores.add(Integer.parseInt(segments.get(0)));
-                        segments.remove(0);
-                    }
+                    filesToSend.add(fileName);
+                    sendTo.put(fileName, dStores);
+                    int numOfDstores = Integer.parseInt(segments[next++]);
+                    for (int j = 0; j < numOfDstores; j++) dStores.add(Integer.parseInt(segments[next++]));
                 }
+                int filesToRemoveNum = Integer.parseInt(segments[next++]);
+                List<String> filesToRemove = Arrays.asList(segments).subList(next, next + filesToRemoveNum);
+                next += filesToRemoveNum;
+                int repairs = next < segments.length ? Integer.parseInt(segments[next++]) : 0;
 
-                ArrayList<Boolean> sendsComplete = new ArrayList<>();
-                for (String fileName : filesToSend.keySet()) {
-                    for (Integer port : filesToSend.get(fileName)) {
-                        new Thread(() -> { sendsComplete.add(server.sendFile(fileName, port)); }).start();
-                    }
-                }
+                //Submitted first, so they are first to start as well as going first for the rate limit
+                ArrayList<Future<Boolean>> sends = new ArrayList<>();
+                submitSends(sends, filesToSend.subList(0, repairs), sendTo, true);
+                submitSends(sends, filesToSend.subList(repairs, filesToSend.size()), sendTo, false);
 
-                for (ReentrantLock lock : fileLocks.values()) {
-                    lock.lock();
-                    lock.unlock();
-                }
+                boolean sendsComplete = true;
+                for (Future<Boolean> send : sends) sendsComplete &= send.get();
+                Logger.info("Connections to other Dstores opened and reused so far: " + server.peers.stats(), this);
 
-                if (sendsComplete.contains(false)) {
+                if (!sendsComplete) {
                     Logger.info("A send wasn't able to complete.", this);
                     return;
                 }
 
-                //Leftover segments after removing the number of files to remove are the files.
-                segments.remove(0);
-                for (String fileName : segments) {
-                    removeFile(fileName, false);
-                }
+                for (String fileName : filesToRemove) removeFile(fileName, false);
                 server.controller.sendMessage("REBALANCE_COMPLETE");
             } catch (Exception e) {
                 Logger.err("Message was malformed", e, this);
             } finally { rebalanceLock.unlock(); }
         }
 
-        private void requestRemove(String message) {
+        /**
+         * Send files to the Dstores they go to, in batches of at most BATCH_FILES files and BATCH_BYTES bytes for each Dstore.
+         * @param sends Where the sends' results are added
+         * @param sendTo File -> ports to send it to
+         * @param repair Whether the files are short of replicas
+         */
+        private void submitSends(List<Future<Boolean>> sends, List<String> fileNames, Map<String, ArrayList<Integer>> sendTo, boolean repair) {
+            HashMap<Integer, ArrayList<String>> filesForPort = new HashMap<>();
+            for (String fileName : fileNames) {
+                for (Integer port : sendTo.get(fileName)) filesForPort.computeIfAbsent(port, x -> new ArrayList<>()).add(fileName);
+            }
+            for (Map.Entry<Integer, ArrayList<String>> entry : filesForPort.entrySet()) {
+                int port = entry.getKey();
+                ArrayList<String> batch = new ArrayList<>();
+                long batchBytes = 0;
+                for (String fileName : entry.getValue()) {
+                    Long size;
+                    synchronized (server.fileSizes) { size = server.fileSizes.get(fileName); }
+                    if (!batch.isEmpty() && (batch.size() >= BATCH_FILES || batchBytes + (size == null ? 0 : size) > BATCH_BYTES)) {
+                        List<String> full = batch;
+                        sends.add(transferExecutor.submit(() -> server.sendFiles(full, port, repair)));
+                        batch = new ArrayList<>();
+                        batchBytes = 0;
+                    }
+                    batch.add(fileName);
+                    batchBytes += size == null ? 0 : size;
+                }
+                List<String> last = batch;
+                sends.add(transferExecutor.submit(() -> server.sendFiles(last, port, repair)));
+            }
+        }
+
+        /**
+         * Handle "THROTTLE *bytes_per_second*" from the Controller, setting the rate limit of rebalance sends (0 for no limit).
+         */
+        private void throttle(String[] segments) {
+            try {
+                long rate = Long.parseLong(segments[1]);
+                server.rebalanceLimit.setRate(rate);
+                Logger.info("Rebalance sends limited to " + (rate == 0 ? "no limit" : rate + " bytes/s"), this);
+            } catch (Exception e) {
+                Logger.err("Message was not in the correct format", e, this);
+            }
+        }
+
+        private void requestRemove(String[] segments) {
             try {
-                String fileName = message.split(" ")[1];
+                String fileName = segments[1];
                 server.removeFile(fileName, true);
             } catch (Exception e) {
                 Logger.err("Message was not in the correct format", e, this);
@@ -337,29 +978,171 @@ class Dstore {
             server.clientsList.add(this);
         }
 
-        public void reveiveMessage(String message) {
+        /**
+         * Handle a request, then close the connection, unless it is another Dstore's rebalance batch that went through cleanly
+         * (which leaves the connection open for the next batch).
+         */
+        public void reveiveMessage(String[] segments) {
+            boolean keepOpen = false;
             try {
-                if (message.startsWith("STORE")) storeRequest(message, true);
-                if (message.startsWith("REBALANCE_STORE")) storeRequest(message, false);
-                if (message.startsWith("LOAD_DATA")) loadRequest(message);
+                String command = segments[0];
+                if (command.equals("STORE_CHAIN")) chainStoreRequest(segments);
+                if (command.equals("STORE")) storeRequest(segments, true);
+                if (command.equals("REBALANCE_STORE")) storeRequest(segments, false);
+                if (command.equals("REBALANCE_BATCH")) keepOpen = batchStoreRequest(segments);
+                if (command.equals("LOAD_DATA") || command.equals("LOAD_CHECKED")) loadRequest(segments);
+                if (command.equals("CACHE_STATS")) sendMessage("CACHE_STATS " + server.cache.stats());
             } catch (IOException e) { Logger.err("Load could not be performed", e, this); } 
             catch (Exception e) {  Logger.err("Message was not in the correct format", e, this); } 
-            finally { server.removeClient(this); }
+            finally { if (!keepOpen) server.removeClient(this); }
+        }
+
+        /**
+         * Also called when the connection closes or times out while it is kept open.
+         */
+        @Override
+        public void close() {
+            server.clientsList.remove(this);
+            super.close();
+        }
+
+        /**
+         * Handle LOAD_DATA, either for the whole file or, given an offset and length, for a byte range of it.
+         * "LOAD_DATA *file* deflate" sends the whole file as a raw deflate stream instead.
+         * Or handle "LOAD_CHECKED *file*", which sends "DATA *size* *checksum*" before the whole file so the client can check it.
+         * When it ends, successfully or not, the Controller is sent "LOAD_DONE *bytes* *micros*" so it can pick replicas by load,
+         * with "range" added for a byte range (which the Controller didn't count as a load it sent here).
+         */
+        private void loadRequest(String[] segments) throws Exception {
+            String fileName = segments[1];
+            long start = System.nanoTime(), sent = 0;
+            boolean range = segments[0].equals("LOAD_DATA") && segments.length == 4;
+            server.activeLoads.incrementAndGet();
+            try {
+                if (segments[0].equals("LOAD_CHECKED")) {
+                    Integer checksum = server.getChecksum(fileName);
+                    Long size;
+                    synchronized (server.fileSizes) { size = server.fileSizes.get(fileName); }
+                    if (checksum == null || size == null) throw new FileNotFoundException("File is not stored on this Dstore: " + fileName);
+                    sendMessage("DATA " + size + " " + Integer.toHexString(checksum));
+                    sent = server.loadFile(fileName, socket);
+                } else if (segments.length == 3 && segments[2].equals(Compression.DEFLATE)) sent = server.loadDeflated(fileName, socket);
+                else if (range) sent = server.loadFile(fileName, socket, Long.parseLong(segments[2]), Long.parseLong(segments[3]));
+                else sent = server.loadFile(fileName, socket);
+            } finally {
+                server.activeLoads.decrementAndGet();
+                server.controller.sendMessage("LOAD_DONE " + sent + " " + (System.nanoTime() - start) / 1000 + (range ? " range" : ""));
+            }
         }
 
-        private void loadRequest(String message) throws Exception {
-            String fileName = message.split(" ")[1];
-            server.loadFile(fileName, socket.getOutputStream());
+        /**
+         * Handle "STORE_CHAIN *file* *size* *port* ...", a store that this Dstore passes down the chain of ports after it,
+         * so that the client only sends the file once. The next Dstore is connected to before ACKing, and gets each part of the
+         * file as it arrives. A STORE_ACK is only sent to the Controller (and "CHAIN_ACK *file*" back up the chain)
+         * once the rest of the chain has acked, so a failure anywhere leaves the store unacknowledged.
+         */
+        private void chainStoreRequest(String[] segments) throws Exception {
+            String fileName = segments[1];
+            long fileSize = Long.parseLong(segments[2]);
+            Integer checksum;
+            if (segments.length == 3) { //End of the chain
+                sendMessage("ACK");
+                if ((checksum = server.storeFile(socket.getInputStream(), fileName, fileSize, null, null, false)) == null) return;
+                server.controller.sendFields("STORE_ACK", fileName);
+                sendFields("CHAIN_ACK", fileName, Integer.toHexString(checksum));
+                return;
+            }
+            try (Socket next = SocketChannel.open(new InetSocketAddress("localhost", Integer.parseInt(segments[3]))).socket()) {
+                next.setSoTimeout(server.timeout);
+                Wire.Link link = new Wire.Link(next, server.binary);
+                ArrayList<String> forward = new ArrayList<>(Arrays.asList(segments));
+                forward.remove(3); //The rest of the chain, after the Dstore it is sent to
+                link.send(forward.toArray(String[]::new));
+                if (!isReply(link.receive(), "ACK")) throw new IOException("Dstore " + segments[3] + " did not ACK the chained store");
+                sendMessage("ACK");
+                if ((checksum = server.storeFile(socket.getInputStream(), fileName, fileSize, next.getChannel(), null, false)) == null) return;
+                //The next Dstore must have received exactly what was written here
+                String[] chainAck = {"CHAIN_ACK", fileName, Integer.toHexString(checksum)};
+                if (!isReply(link.receive(), chainAck)) throw new IOException("Dstore " + segments[3] + " did not store " + fileName + " intact");
+                server.controller.sendFields("STORE_ACK", fileName);
+                sendFields(chainAck);
+            }
         }
 
-        private void storeRequest(String message, boolean ack) throws Exception {
-            String fileName = message.split(" ")[1];
-            Integer fileSize = Integer.parseInt(message.split(" ")[2]);
+        /**
+         * Handle "STORE *file* *size* [*checksum*] [deflate]" from a client, or "REBALANCE_STORE *file* *size* *checksum* [*hash*] [deflate]"
+         * from another Dstore. The file is only kept if it matches the checksum (CRC32C in hex) when one is given.
+         * With "deflate" the file is sent as a raw deflate stream, and inflated as it arrives.
+         * Content this Dstore already has a blob for is linked to rather than sent again.
+         */
+        private void storeRequest(String[] segments, boolean ack) throws Exception {
+            String fileName = segments[1];
+            long fileSize = Long.parseLong(segments[2]);
+            boolean deflated = segments[segments.length - 1].equals(Compression.DEFLATE);
+            if (deflated) segments = Arrays.copyOf(segments, segments.length - 1);
+            Integer expected = segments.length > 3 ? Integer.parseUnsignedInt(segments[3], 16) : null;
 
+            if (!ack && expected != null && holds(fileName, fileSize, expected, segments.length > 4 ? segments[4] : null)) {
+                sendMessage("HAVE");
+                return;
+            }
             sendMessage("ACK");
-            var file = new byte[fileSize];
-            socket.getInputStream().readNBytes(file, 0, fileSize);
-            server.storeFile(file, fileName, fileSize, ack);
+            if (server.storeFile(socket.getInputStream(), fileName, fileSize, null, expected, deflated) == null) return;
+            if (ack) server.controller.sendFields("STORE_ACK", fileName);
+            else sendMessage("STORED");
+        }
+
+        /**
+         * Handle "REBALANCE_BATCH *n*" followed by "*file* *size* *checksum* *hash* *deflate_length*" for each file, from
+         * another Dstore (see sendFiles). The files that aren't already held are read one after another, stopping at the
+         * first that can't be stored, since the rest of the stream can't be trusted to line up with the files after it.
+         * @return Whether every file sent was stored, so the connection is still in step and can carry another batch
+         */
+        private boolean batchStoreRequest(String[] segments) throws Exception {
+            int count = Integer.parseInt(segments[1]);
+            ArrayList<String> need = new ArrayList<>(List.of("NEED"));
+            for (int i = 0; i < count; i++) {
+                int next = 2 + i * 5;
+                String hash = segments[next + 3].equals("-") ? null : segments[next + 3];
+                if (!holds(segments[next], Long.parseLong(segments[next + 1]), Integer.parseUnsignedInt(segments[next + 2], 16), hash)) need.add(Integer.toString(i));
+            }
+            sendFields(need);
+
+            ArrayList<String> stored = new ArrayList<>(List.of("STORED"));
+            for (int i = 1; i < need.size(); i++) {
+                int next = 2 + Integer.parseInt(need.get(i)) * 5;
+                String fileName = segments[next];
+                boolean deflated = !segments[next + 4].equals("-");
+                //A deflate stream is read through a limit, since inflating reads ahead and would take the start of the next file
+                InputStream in = deflated ? Wire.limit(socket.getInputStream(), Long.parseLong(segments[next + 4])) : socket.getInputStream();
+                if (server.storeFile(in, fileName, Long.parseLong(segments[next + 1]), null, Integer.parseUnsignedInt(segments[next + 2], 16), deflated) == null) break;
+                if (deflated) in.transferTo(OutputStream.nullOutputStream()); //Anything after the end of the stream
+                stored.add(need.get(i));
+            }
+            sendFields(stored);
+            return stored.size() == need.size();
+        }
+
+        /**
+         * Whether this Dstore already holds a file being sent to it for a rebalance: the same file, or (if deduplicating) its
+         * content, which the file is then linked to.
+         * @param hash The file's content hash, or null if the sender doesn't deduplicate
+         */
+        private boolean holds(String fileName, long fileSize, int expected, String hash) throws Exception {
+            if (Integer.valueOf(expected).equals(server.getChecksum(fileName))) {
+                Long size;
+                synchronized (server.fileSizes) { size = server.fileSizes.get(fileName); }
+                if (size != null && size == fileSize) return true; //Already holds this exact file, no need to send it again
+            }
+            if (hash != null && server.dedup) {
+                boolean held;
+                synchronized (server.blobRefs) { held = server.blobRefs.containsKey(hash); }
+                if (held && server.storeFromBlob(fileName, fileSize, expected, hash) != null) {
+                    Logger.info("Already holds the content of " + fileName + ", linked it without a transfer", this);
+                    return true;
+                }
+            }
+            return false;
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,133 @@
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of whole file contents in direct (off-heap) buffers, bounded by the bytes it holds.
+ * Files are evicted least recently used first, but a file is only let in if it has been read more often, recently,
+ * than the files it would push out (TinyLFU admission). How often files are read is counted approximately in a count-min
+ * sketch of 4 bit counters, which are all halved every so often so that old popularity fades. That keeps one-off reads of
+ * big files from flushing out the hot ones.
+ * Buffers handed out stay valid after eviction, they are only freed once nothing uses them.
+ */
+class FileCache {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+
+    private final long capacity;
+    private final long maxEntry;
+    private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true); //Least recently used first
+    private long bytes = 0;
+    private final byte[][] sketch;
+    private final int mask;
+    private final int resetAfter;
+    private int additions = 0;
+    private long hits = 0, misses = 0, evictions = 0, rejections = 0;
+
+    /**
+     * @param capacity Bytes the cache may hold
+     */
+    public FileCache(long capacity) {
+        this.capacity = capacity;
+        this.maxEntry = Math.min(capacity / 8, Integer.MAX_VALUE); //So that one file can't take over the cache
+        //Enough counters for the number of 16 KiB files that would fill the cache, within sensible bounds
+        int width = Integer.highestOneBit((int) Math.min(1 << 20, Math.max(1 << 10, capacity >> 14)));
+        this.sketch = new byte[DEPTH][width];
+        this.mask = width - 1;
+        this.resetAfter = width * 10;
+    }
+
+    public boolean isEnabled() { return capacity > 0; }
+
+    /**
+     * Look up a file, counting the read.
+     * @return A buffer of the file's content (positioned at its start), or null if it isn't cached
+     */
+    public synchronized ByteBuffer get(String fileName) {
+        increment(fileName);
+        ByteBuffer content = entries.get(fileName);
+        if (content == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return content.duplicate();
+    }
+
+    /**
+     * Whether a file that was just missed would be let in, so whether it's worth reading it into memory.
+     */
+    public synchronized boolean wouldAdmit(String fileName, long size) {
+        if (admissible(fileName, size)) return true;
+        rejections++;
+        return false;
+    }
+
+    private boolean admissible(String fileName, long size) {
+        if (size > maxEntry) return false;
+        int frequency = frequency(fileName);
+        long needed = bytes + size - capacity;
+        for (Iterator<Map.Entry<String, ByteBuffer>> it = entries.entrySet().iterator(); needed > 0 && it.hasNext();) {
+            Map.Entry<String, ByteBuffer> victim = it.next();
+            if (frequency(victim.getKey()) >= frequency) return false;
+            needed -= victim.getValue().capacity();
+        }
+        return true;
+    }
+
+    /**
+     * Add a file's content, evicting whatever it has to, unless it is no longer admitted.
+     * @param content The content, from position 0 to its capacity
+     */
+    public synchronized void put(String fileName, ByteBuffer content) {
+        if (!admissible(fileName, content.capacity())) return;
+        invalidate(fileName);
+        for (Iterator<Map.Entry<String, ByteBuffer>> it = entries.entrySet().iterator(); bytes + content.capacity() > capacity && it.hasNext();) {
+            bytes -= it.next().getValue().capacity();
+            it.remove();
+            evictions++;
+        }
+        entries.put(fileName, content);
+        bytes += content.capacity();
+    }
+
+    /**
+     * Drop a file (that has been changed or removed).
+     */
+    public synchronized void invalidate(String fileName) {
+        ByteBuffer content = entries.remove(fileName);
+        if (content != null) bytes -= content.capacity();
+    }
+
+    /**
+     * The cache's counters, as "*hits* *misses* *evictions* *rejections* *files* *bytes*".
+     */
+    public synchronized String stats() {
+        return hits + " " + misses + " " + evictions + " " + rejections + " " + entries.size() + " " + bytes;
+    }
+
+    private int index(int hash, int row) {
+        int h = hash * (0x9E3779B9 + 2 * row); //A different odd multiplier for each row
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void increment(String fileName) {
+        int hash = fileName.hashCode();
+        for (int row = 0; row < DEPTH; row++) {
+            int i = index(hash, row);
+            if (sketch[row][i] < MAX_COUNT) sketch[row][i]++;
+        }
+        if (++additions >= resetAfter) { //Halve every count, so the sketch follows what is popular now
+            additions /= 2;
+            for (byte[] counts : sketch) for (int i = 0; i < counts.length; i++) counts[i] >>= 1;
+        }
+    }
+
+    private int frequency(String fileName) {
+        int hash = fileName.hashCode(), frequency = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) frequency = Math.min(frequency, sketch[row][index(hash, row)]);
+        return frequency;
+    }
+}
@@ -0,0 +1,107 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the Controller's threaded and selector front ends under many connections. For each, a Controller is started in
+ * its own process, a number of idle client connections are opened (each sends one LIST, then stays open without sending
+ * anything else), and then a number of active connections send LISTs back to back for a while.
+ * Reports the requests per second the active connections got through, and the threads the Controller process had with
+ * only the idle connections open and at most while under load (read from /proc, so only on Linux).
+ * There are no Dstores, so every LIST is answered with ERROR_NOT_ENOUGH_DSTORES, which keeps the time on the front end.
+ *
+ * Usage: FrontEndBench [idle] [active] [seconds]
+ */
+class FrontEndBench {
+    private static final int CPORT = 12398;
+
+    public static void main(String[] args) throws Exception {
+        int idle = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int active = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        System.out.printf("%d idle and %d active client connections, %ds of load%n", idle, active, seconds);
+        for (String frontEnd : List.of("threaded", "selector")) run(frontEnd, idle, active, seconds);
+    }
+
+    private static void run(String frontEnd, int idle, int active, int seconds) throws Exception {
+        Process controller = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+            "-Dlog.level=ERROR", "-cp", System.getProperty("java.class.path"), "Controller", Integer.toString(CPORT), "1", "1000", "3600", frontEnd)
+            .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        ArrayList<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < idle; i++) {
+                Socket socket = connect();
+                sockets.add(socket);
+                request(new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true), new BufferedReader(new InputStreamReader(socket.getInputStream())));
+            }
+            int idleThreads = threads(controller);
+
+            AtomicLong requests = new AtomicLong();
+            long deadline = System.nanoTime() + seconds * 1000000000L, start = System.nanoTime();
+            ArrayList<Thread> clients = new ArrayList<>();
+            for (int i = 0; i < active; i++) {
+                Socket socket = connect();
+                sockets.add(socket);
+                Thread client = new Thread(() -> {
+                    try {
+                        PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+                        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                        while (System.nanoTime() < deadline) {
+                            request(out, in);
+                            requests.incrementAndGet();
+                        }
+                    } catch (IOException e) { e.printStackTrace(); }
+                });
+                clients.add(client);
+                client.start();
+            }
+            int loadedThreads = idleThreads;
+            while (System.nanoTime() < deadline) {
+                loadedThreads = Math.max(loadedThreads, threads(controller));
+                Thread.sleep(100);
+            }
+            for (Thread client : clients) client.join();
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            System.out.printf("  %-8s %,10.0f requests/s, Controller threads: %d with the idle connections, up to %d under load%n",
+                frontEnd, requests.get() / elapsed, idleThreads, loadedThreads);
+        } finally {
+            for (Socket socket : sockets) socket.close();
+            controller.destroy();
+            controller.waitFor();
+        }
+    }
+
+    /** Connect to the Controller, waiting for it to start listening */
+    private static Socket connect() throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try { return new Socket("localhost", CPORT); }
+            catch (IOException e) {
+                if (attempt == 100) throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static void request(PrintWriter out, BufferedReader in) throws IOException {
+        out.println("LIST");
+        if (in.readLine() == null) throw new IOException("The Controller closed the connection");
+    }
+
+    /** Threads in a process, or -1 if they can't be counted here */
+    private static int threads(Process process) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc", Long.toString(process.pid()), "status"))) {
+                if (line.startsWith("Threads:")) return Integer.parseInt(line.substring(8).trim());
+            }
+        } catch (IOException e) { }
+        return -1;
+    }
+}
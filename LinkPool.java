@@ -0,0 +1,93 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connections to other Dstores, kept open after an exchange so that the next one to the same port can use them
+ * instead of opening another. A connection is only reused if it has been idle for less than half the timeout,
+ * since the other side closes connections that stay idle for its timeout.
+ */
+final class LinkPool {
+    private record Idle(Wire.Link link, long since) {}
+
+    private final HashMap<Integer, ArrayDeque<Idle>> idle = new HashMap<>();
+    private final int timeout;
+    private final long maxIdle;
+    private final boolean offerBinary;
+    private long opened = 0, reused = 0;
+
+    /**
+     * @param timeout Read timeout of the connections (ms), which the other side also closes idle connections after
+     * @param offerBinary Whether to offer Wire frames on new connections
+     */
+    LinkPool(int timeout, boolean offerBinary) {
+        this.timeout = timeout;
+        this.maxIdle = TimeUnit.MILLISECONDS.toNanos(timeout / 2);
+        this.offerBinary = offerBinary;
+    }
+
+    /**
+     * A connection to the port, reused if one is idle or else newly opened. It must be released or discarded once finished with.
+     */
+    Wire.Link borrow(int port) throws IOException {
+        synchronized (idle) {
+            ArrayDeque<Idle> links = idle.get(port);
+            while (links != null && !links.isEmpty()) {
+                Idle link = links.pollLast(); //Most recently used first, the rest are more likely to have timed out
+                if (System.nanoTime() - link.since() < maxIdle) {
+                    reused++;
+                    return link.link();
+                }
+                close(link.link());
+            }
+            opened++;
+        }
+        //Opened through a channel so that files can be sent with transferTo
+        Socket socket = SocketChannel.open(new InetSocketAddress("localhost", port)).socket();
+        try {
+            socket.setSoTimeout(timeout);
+            return new Wire.Link(socket, offerBinary);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Hand back a connection whose exchange finished cleanly, for the next one to use.
+     */
+    void release(Wire.Link link) {
+        synchronized (idle) { idle.computeIfAbsent(link.socket().getPort(), x -> new ArrayDeque<>()).add(new Idle(link, System.nanoTime())); }
+    }
+
+    /**
+     * Close a connection that failed, or was left out of step with the other side.
+     */
+    void discard(Wire.Link link) { close(link); }
+
+    /**
+     * Connections opened and reused so far, as "*opened* *reused*".
+     */
+    String stats() {
+        synchronized (idle) { return opened + " " + reused; }
+    }
+
+    void closeAll() {
+        ArrayList<Idle> links = new ArrayList<>();
+        synchronized (idle) {
+            idle.values().forEach(links::addAll);
+            idle.clear();
+        }
+        for (Idle link : links) close(link.link());
+    }
+
+    private void close(Wire.Link link) {
+        try { link.socket().close(); }
+        catch (IOException e) { Logger.err("Could not close the connection to " + link.socket().getPort(), e, this); }
+    }
+}
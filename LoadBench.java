@@ -0,0 +1,129 @@
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Compares the throughput of the ways a Dstore has served LOAD_DATA, with many clients loading at once over localhost:
+ *  stream     the original path: the whole file read into the heap under one monitor shared by every load, then written out
+ *  transferTo the current path: the file's own read lock, and FileChannel.transferTo (sendfile) straight to the socket channel
+ *  throttled  transferTo in slices through a RateLimiter with no limit, as rebalance sends go
+ * Each client opens a connection per load, as clients do, and reads the file to the end. The files are written first,
+ * so they are served from the page cache and the comparison is of the copying and locking rather than the disk.
+ *
+ * Usage: LoadBench [files] [file_size] [clients] [seconds]
+ */
+class LoadBench {
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 8 << 20;
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        Path folder = Files.createTempDirectory("loadbench");
+        try {
+            byte[] content = new byte[size];
+            new Random(1).nextBytes(content);
+            for (int f = 0; f < files; f++) Files.write(folder.resolve("file" + f), content);
+            System.out.printf("%d clients loading %d files of %,d bytes for %ds each way%n", clients, files, size, seconds);
+            for (String mode : List.of("stream", "transferTo", "throttled", "stream", "transferTo", "throttled")) {
+                run(mode, folder, files, size, clients, seconds); //Twice over, the first time round warms up
+            }
+        } finally {
+            try (var paths = Files.walk(folder)) { paths.sorted(Comparator.reverseOrder()).forEach(x -> x.toFile().delete()); }
+        }
+    }
+
+    private static void run(String mode, Path folder, int files, int size, int clients, int seconds) throws Exception {
+        Object fileIndex = new Object(); //The monitor the stream path loaded under
+        HashMap<String, ReentrantReadWriteLock> fileLocks = new HashMap<>();
+        for (int f = 0; f < files; f++) fileLocks.put("file" + f, new ReentrantReadWriteLock());
+        RateLimiter unlimited = new RateLimiter(0);
+
+        ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+        int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        executor.execute(() -> {
+            while (server.isOpen()) {
+                SocketChannel channel;
+                try { channel = server.accept(); }
+                catch (IOException e) { return; }
+                executor.execute(() -> {
+                    try (channel) {
+                        String fileName = new BufferedReader(new InputStreamReader(channel.socket().getInputStream(), StandardCharsets.UTF_8)).readLine().split(" ")[1];
+                        Path file = folder.resolve(fileName);
+                        if (mode.equals("stream")) {
+                            byte[] data;
+                            synchronized (fileIndex) {
+                                try (FileInputStream in = new FileInputStream(file.toFile())) { data = in.readAllBytes(); }
+                            }
+                            channel.socket().getOutputStream().write(data);
+                            return;
+                        }
+                        ReentrantReadWriteLock fileLock = fileLocks.get(fileName);
+                        fileLock.readLock().lock();
+                        try (FileChannel fc = FileChannel.open(file)) {
+                            RateLimiter.Throttled throttled = unlimited.throttle(channel, false);
+                            long position = 0;
+                            while (position < fc.size()) {
+                                position += mode.equals("throttled") ? throttled.transferFrom(fc, position, fc.size() - position) : fc.transferTo(position, fc.size() - position, channel);
+                            }
+                        } finally { fileLock.readLock().unlock(); }
+                    } catch (Exception e) { e.printStackTrace(); }
+                });
+            }
+        });
+
+        AtomicLong loaded = new AtomicLong(), bytes = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1000000000L, start = System.nanoTime();
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            Thread client = new Thread(() -> {
+                byte[] buffer = new byte[64 * 1024];
+                try {
+                    while (System.nanoTime() < deadline) {
+                        try (Socket socket = new Socket("localhost", port)) {
+                            OutputStream out = socket.getOutputStream();
+                            out.write(("LOAD_DATA file" + ThreadLocalRandom.current().nextInt(files) + "\n").getBytes(StandardCharsets.UTF_8));
+                            out.flush();
+                            InputStream in = socket.getInputStream();
+                            long received = 0;
+                            for (int read; (read = in.read(buffer)) > 0; ) received += read;
+                            if (received != size) throw new IOException("Received " + received + " of " + size + " bytes");
+                            bytes.addAndGet(received);
+                            loaded.incrementAndGet();
+                        }
+                    }
+                } catch (IOException e) { e.printStackTrace(); }
+            });
+            threads.add(client);
+            client.start();
+        }
+        for (Thread client : threads) client.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        server.close();
+        executor.shutdownNow();
+        System.out.printf("  %-10s %,8d loads, %,8.0f MB/s%n", mode, loaded.get(), bytes.get() / elapsed / 1e6);
+    }
+}
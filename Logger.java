@@ -1,50 +1,145 @@
 import java.io.BufferedWriter;
 import java.io.FileWriter;
-import java.time.LocalDateTime;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Asynchronous logger. Callers only build a record and add it to a bounded queue,
+ * a single background thread drains the queue and writes it in batches to log.txt and stdout/stderr.
+ *
+ * Configured with system properties:
+ *  log.level    DEBUG, INFO or ERROR (default INFO). Messages sent and received are logged at DEBUG.
+ *  log.sample   Only log 1 in every N DEBUG messages (default 1)
+ *  log.queue    Maximum number of records waiting to be written (default 65536)
+ *  log.overflow "drop" to discard records while the queue is full (default), "block" to wait for space
+ */
 class Logger {
+    enum Level { DEBUG, INFO, ERROR }
+
+    private static final String LOG_FILE = "log.txt";
+    private static final int BATCH_SIZE = 1024;
+    private static final DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private static final Level level = Level.valueOf(System.getProperty("log.level", "INFO").toUpperCase());
+    private static final int sampleRate = Math.max(1, Integer.getInteger("log.sample", 1));
+    private static final int capacity = Math.max(1, Integer.getInteger("log.queue", 65536));
+    private static final boolean blockWhenFull = "block".equalsIgnoreCase(System.getProperty("log.overflow", "drop"));
+
+    private static final ConcurrentLinkedQueue<Record> queue = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger queued = new AtomicInteger();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final Thread writer = new Thread(Logger::drain, "Logger");
+
+    static {
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Logger::flush, "Logger shutdown"));
+    }
+
+    private record Record(long time, Level level, String source, String thread, String message, String stackTrace, boolean clear) {}
+
     public static void clearLogs() {
-        try {
-            FileWriter clearFile = new FileWriter("log.txt");
-            clearFile.write("");
-            clearFile.close();
-        } catch (Exception e) {
-            System.err.println("Couldn't clear log file");
-        }
+        enqueue(new Record(0, Level.ERROR, null, null, null, null, true));
     }
 
-    private static void log(String log) {
-        try {
-            FileWriter fw = new FileWriter("log.txt", true);
-            BufferedWriter bw = new BufferedWriter(fw);
-            bw.append(log + "\n");
-            bw.close();
-            fw.close();
-        } catch (Exception e) {
-            System.err.println("Couldn't write to  log file");
-        }
+    public static boolean isEnabled(Level messageLevel) { return messageLevel.compareTo(level) >= 0; }
+
+    public static void debug(String info, Object clazz) {
+        if (!isEnabled(Level.DEBUG)) return;
+        if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) return;
+        enqueue(new Record(System.currentTimeMillis(), Level.DEBUG, clazz.getClass().getCanonicalName(), threadInfo(), info, null, false));
     }
 
     public static void info(String info, Object clazz) {
-        Thread thread = Thread.currentThread();
-        String threadInfo = thread.getName() + ":" + thread.getId();
-        String message = getTime() + " | " + clazz.getClass().getCanonicalName() + " | " + threadInfo + " | " + info;
-        log(message);
-        System.out.println(message);
+        if (!isEnabled(Level.INFO)) return;
+        enqueue(new Record(System.currentTimeMillis(), Level.INFO, clazz.getClass().getCanonicalName(), threadInfo(), info, null, false));
     }
 
     public static void err(String info, Exception exception, Object clazz) {
+        StringWriter stackTrace = new StringWriter();
+        exception.printStackTrace(new PrintWriter(stackTrace));
+        enqueue(new Record(System.currentTimeMillis(), Level.ERROR, clazz.getClass().toString().substring(6), threadInfo(), info, stackTrace.toString(), false));
+    }
+
+    /**
+     * Wait until everything queued so far has been written.
+     */
+    public static void flush() {
+        while (queued.get() > 0 && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    private static String threadInfo() {
         Thread thread = Thread.currentThread();
-        String threadInfo = thread.getName() + ":" + thread.getId();
-        String message = getTime() + " | " + clazz.getClass().toString().substring(6) + " | " + threadInfo + " | " + info;
-        exception.printStackTrace();
-        log(message);
-        System.err.println(message);
+        return thread.getName() + ":" + thread.getId();
+    }
+
+    private static void enqueue(Record record) {
+        while (queued.get() >= capacity) {
+            if (!blockWhenFull) {
+                dropped.incrementAndGet();
+                return;
+            }
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(100_000);
+        }
+        queue.add(record);
+        if (queued.getAndIncrement() == 0) LockSupport.unpark(writer);
+    }
+
+    /**
+     * Body of the writer thread. Writes everything in the queue in batches, then parks until more arrives.
+     */
+    private static void drain() {
+        Writer file = openLog(true);
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        Writer err = new BufferedWriter(new OutputStreamWriter(System.err), 1 << 12);
+        while (true) {
+            int written = 0;
+            Record record;
+            try {
+                while (written < BATCH_SIZE && (record = queue.poll()) != null) {
+                    written++;
+                    if (record.clear()) {
+                        file.close();
+                        file = openLog(false);
+                        continue;
+                    }
+                    String message = dtf.format(Instant.ofEpochMilli(record.time())) + " | " + record.source() + " | " + record.thread() + " | " + record.message() + "\n";
+                    file.write(message);
+                    if (record.level() == Level.ERROR) err.write(record.stackTrace() + message);
+                    else out.write(message);
+                }
+                long droppedNum = dropped.getAndSet(0);
+                if (droppedNum > 0) file.write(droppedNum + " log messages were dropped because the queue was full\n");
+                file.flush();
+                out.flush();
+                err.flush();
+            } catch (IOException e) { System.err.println("Couldn't write to log file"); }
+
+            if (written == 0) LockSupport.parkNanos(10_000_000);
+            else queued.addAndGet(-written);
+        }
     }
 
-    private static String getTime() {
-        DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
-        return dtf.format(LocalDateTime.now());
+    private static Writer openLog(boolean append) {
+        try { return new BufferedWriter(new FileWriter(LOG_FILE, append), 1 << 16); }
+        catch (IOException e) {
+            System.err.println("Couldn't open log file");
+            return Writer.nullWriter();
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,325 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log and snapshots of the Controller's file index, so that a restarted Controller can recover its namespace.
+ * Records are buffered by append*() and made durable in groups by sync(): one caller writes and forces everything appended so far
+ * while the others wait for it. Dstores are recorded by port, since their connections don't survive a restart.
+ *
+ * On disk the folder holds snapshot-N (the whole index when segment N was started) and wal-N, wal-N+1... (everything since).
+ * A log created without a folder is disabled, and every method does nothing.
+ */
+class MetadataLog {
+    private static final byte PUT_FILE = 1, UPDATE_STATUS = 2, ADD_RELATION = 3, REMOVE_FILE = 4, REMOVE_DSTORE = 5, UPDATE_ALL = 6, PUT_CHUNKED_FILE = 7,
+        SET_FILE_DSTORES = 8; //Opcodes are never reused, UPDATE_ALL is only replayed from older logs
+    private static final int SNAPSHOT_MAGIC = 0x44465331, CHUNKED_SNAPSHOT_MAGIC = 0x44465332; //DFS1 snapshots have no chunk sizes
+
+    private final File folder;
+    private FileChannel segment;
+    private long segmentId;
+    private long recordsSinceSnapshot = 0;
+
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private long appendedSeq = 0, durableSeq = 0;
+    private boolean flushing = false;
+
+    /**
+     * Index contents in terms of Dstore ports, as recovered from disk or captured for a snapshot.
+     */
+    static class State {
+        final HashMap<String, String> statuses = new HashMap<>();
+        final HashMap<String, Long> sizes = new HashMap<>();
+        final HashMap<String, Long> chunkSizes = new HashMap<>(); //Only for files stored in chunks
+        final HashMap<Integer, HashSet<String>> relations = new HashMap<>();
+
+        private void removeFile(String fileName) {
+            statuses.remove(fileName);
+            sizes.remove(fileName);
+            chunkSizes.remove(fileName);
+            for (HashSet<String> files : relations.values()) files.remove(fileName);
+        }
+    }
+
+    public MetadataLog(File folder) { this.folder = folder; }
+
+    public boolean isEnabled() { return folder != null; }
+
+    /**
+     * Load the latest snapshot and replay the log after it, then start a new log segment.
+     * @return The recovered state (empty if disabled or nothing was stored)
+     * @throws IOException If the folder can't be created or read
+     */
+    public synchronized State recover() throws IOException {
+        State state = new State();
+        if (!isEnabled()) return state;
+        if (!folder.isDirectory() && !folder.mkdirs()) throw new IOException("Could not create metadata folder: " + folder.getPath());
+
+        long snapshotId = latest("snapshot-");
+        if (snapshotId >= 0) readSnapshot(new File(folder, "snapshot-" + snapshotId), state);
+        long[] segments = ids("wal-");
+        for (long id : segments) if (id >= Math.max(snapshotId, 0)) replay(new File(folder, "wal-" + id), state);
+
+        segmentId = segments.length == 0 ? Math.max(snapshotId, 0) : segments[segments.length - 1] + 1;
+        segment = openSegment(segmentId);
+        return state;
+    }
+
+    public void appendPutFile(String fileName, String status, long size) {
+        append(PUT_FILE, out -> { out.writeUTF(fileName); out.writeUTF(status); out.writeLong(size); });
+    }
+
+    public void appendPutChunkedFile(String fileName, String status, long size, long chunkSize) {
+        append(PUT_CHUNKED_FILE, out -> { out.writeUTF(fileName); out.writeUTF(status); out.writeLong(size); out.writeLong(chunkSize); });
+    }
+
+    public void appendUpdateStatus(String fileName, String status) {
+        append(UPDATE_STATUS, out -> { out.writeUTF(fileName); out.writeUTF(status); });
+    }
+
+    public void appendAddRelation(int port, String fileName) {
+        append(ADD_RELATION, out -> { out.writeInt(port); out.writeUTF(fileName); });
+    }
+
+    public void appendRemoveFile(String fileName) {
+        append(REMOVE_FILE, out -> out.writeUTF(fileName));
+    }
+
+    public void appendRemoveDstore(int port) {
+        append(REMOVE_DSTORE, out -> out.writeInt(port));
+    }
+
+    public void appendSetFileDstores(String fileName, Collection<Integer> ports) {
+        append(SET_FILE_DSTORES, out -> {
+            out.writeUTF(fileName);
+            out.writeInt(ports.size());
+            for (int port : ports) out.writeInt(port);
+        });
+    }
+
+    public synchronized boolean snapshotDue(long interval) { return isEnabled() && recordsSinceSnapshot >= interval; }
+
+    /**
+     * Make every record appended so far durable. Concurrent callers share a single write and force.
+     */
+    public void sync() throws IOException {
+        if (!isEnabled()) return;
+        long target;
+        synchronized (this) { target = appendedSeq; }
+        while (true) {
+            ByteArrayOutputStream batch;
+            long batchSeq;
+            synchronized (this) {
+                while (flushing && durableSeq < target) {
+                    try { wait(); } catch (InterruptedException e) { throw new IOException("Interrupted waiting for the log", e); }
+                }
+                if (durableSeq >= target) return;
+                flushing = true;
+                batch = buffer;
+                buffer = new ByteArrayOutputStream();
+                batchSeq = appendedSeq;
+            }
+            boolean written = false;
+            try {
+                segment.write(ByteBuffer.wrap(batch.toByteArray()));
+                segment.force(false);
+                written = true;
+            } finally {
+                synchronized (this) {
+                    flushing = false;
+                    if (written) durableSeq = batchSeq;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Start a new log segment. The caller must stop any appends until it returns, so that the state it captured
+     * for the snapshot is exactly what the earlier segments describe.
+     * @return Id of the new segment, to pass to writeSnapshot
+     */
+    public long rotate() throws IOException {
+        sync();
+        synchronized (this) {
+            segment.close();
+            segment = openSegment(++segmentId);
+            recordsSinceSnapshot = 0;
+            return segmentId;
+        }
+    }
+
+    /**
+     * Write a snapshot for the given segment and delete the snapshots and segments it replaces.
+     * @param state Index contents when the segment was started
+     * @param id Segment id returned by rotate
+     */
+    public void writeSnapshot(State state, long id) throws IOException {
+        File tmp = new File(folder, "snapshot-" + id + ".tmp");
+        try (FileOutputStream fs = new FileOutputStream(tmp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fs, 1 << 16))) {
+            out.writeInt(CHUNKED_SNAPSHOT_MAGIC);
+            out.writeInt(state.statuses.size());
+            for (Map.Entry<String, String> file : state.statuses.entrySet()) {
+                out.writeUTF(file.getKey());
+                out.writeUTF(file.getValue());
+                out.writeLong(state.sizes.getOrDefault(file.getKey(), 0L));
+            }
+            out.writeInt(state.relations.size());
+            for (Map.Entry<Integer, HashSet<String>> dStore : state.relations.entrySet()) {
+                out.writeInt(dStore.getKey());
+                out.writeInt(dStore.getValue().size());
+                for (String fileName : dStore.getValue()) out.writeUTF(fileName);
+            }
+            out.writeInt(state.chunkSizes.size());
+            for (Map.Entry<String, Long> file : state.chunkSizes.entrySet()) {
+                out.writeUTF(file.getKey());
+                out.writeLong(file.getValue());
+            }
+            out.flush();
+            fs.getChannel().force(true);
+        }
+        Files.move(tmp.toPath(), new File(folder, "snapshot-" + id).toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        for (long old : ids("snapshot-")) if (old < id) new File(folder, "snapshot-" + old).delete();
+        for (long old : ids("wal-")) if (old < id) new File(folder, "wal-" + old).delete();
+    }
+
+    private interface RecordWriter { void write(DataOutputStream out) throws IOException; }
+
+    /**
+     * Buffer a record as [length][crc][op + payload]. It becomes durable on the next sync().
+     */
+    private void append(byte op, RecordWriter payload) {
+        if (!isEnabled()) return;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(op);
+            payload.write(out);
+            byte[] record = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            synchronized (this) {
+                DataOutputStream bufferOut = new DataOutputStream(buffer);
+                bufferOut.writeInt(record.length);
+                bufferOut.writeInt((int) crc.getValue());
+                bufferOut.write(record);
+                appendedSeq++;
+                recordsSinceSnapshot++;
+            }
+        } catch (IOException e) { Logger.err("Could not append to the metadata log", e, this); }
+    }
+
+    private void replay(File file, State state) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            while (true) {
+                byte[] record;
+                try {
+                    int length = in.readInt();
+                    int crc = in.readInt();
+                    record = new byte[length];
+                    in.readFully(record);
+                    CRC32 check = new CRC32();
+                    check.update(record);
+                    if ((int) check.getValue() != crc) throw new EOFException("Checksum mismatch");
+                } catch (EOFException | NegativeArraySizeException e) { return; } //Torn write at the end of the log
+                apply(new DataInputStream(new ByteArrayInputStream(record)), state);
+            }
+        }
+    }
+
+    private void apply(DataInputStream in, State state) throws IOException {
+        switch (in.readByte()) {
+            case PUT_FILE -> {
+                String fileName = in.readUTF();
+                state.statuses.put(fileName, in.readUTF());
+                state.sizes.put(fileName, in.readLong());
+            }
+            case PUT_CHUNKED_FILE -> {
+                String fileName = in.readUTF();
+                state.statuses.put(fileName, in.readUTF());
+                state.sizes.put(fileName, in.readLong());
+                state.chunkSizes.put(fileName, in.readLong());
+            }
+            case UPDATE_STATUS -> {
+                String fileName = in.readUTF();
+                state.statuses.put(fileName, in.readUTF());
+            }
+            case ADD_RELATION -> state.relations.computeIfAbsent(in.readInt(), x -> new HashSet<>()).add(in.readUTF());
+            case REMOVE_FILE -> state.removeFile(in.readUTF());
+            case REMOVE_DSTORE -> state.relations.remove(in.readInt());
+            case SET_FILE_DSTORES -> {
+                String fileName = in.readUTF();
+                for (HashSet<String> files : state.relations.values()) files.remove(fileName);
+                for (int i = in.readInt(); i > 0; i--) state.relations.computeIfAbsent(in.readInt(), x -> new HashSet<>()).add(fileName);
+                if (state.statuses.containsKey(fileName)) state.statuses.put(fileName, "store complete");
+            }
+            case UPDATE_ALL -> { //Every Dstore's files, from before rebalances were incremental
+                for (int i = in.readInt(); i > 0; i--) {
+                    HashSet<String> files = new HashSet<>();
+                    state.relations.put(in.readInt(), files);
+                    for (int j = in.readInt(); j > 0; j--) {
+                        String fileName = in.readUTF();
+                        files.add(fileName);
+                        if (state.statuses.containsKey(fileName)) state.statuses.put(fileName, "store complete");
+                    }
+                }
+            }
+            default -> throw new IOException("Unknown metadata log record");
+        }
+    }
+
+    private void readSnapshot(File file, State state) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            int magic = in.readInt();
+            if (magic != SNAPSHOT_MAGIC && magic != CHUNKED_SNAPSHOT_MAGIC) throw new IOException("Not a snapshot: " + file.getPath());
+            for (int i = in.readInt(); i > 0; i--) {
+                String fileName = in.readUTF();
+                state.statuses.put(fileName, in.readUTF());
+                state.sizes.put(fileName, in.readLong());
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                HashSet<String> files = new HashSet<>();
+                state.relations.put(in.readInt(), files);
+                for (int j = in.readInt(); j > 0; j--) files.add(in.readUTF());
+            }
+            if (magic == CHUNKED_SNAPSHOT_MAGIC) for (int i = in.readInt(); i > 0; i--) state.chunkSizes.put(in.readUTF(), in.readLong());
+        }
+    }
+
+    private FileChannel openSegment(long id) throws IOException {
+        return new FileOutputStream(new File(folder, "wal-" + id), true).getChannel();
+    }
+
+    private long latest(String prefix) {
+        long[] found = ids(prefix);
+        return found.length == 0 ? -1 : found[found.length - 1];
+    }
+
+    private long[] ids(String prefix) {
+        String[] names = folder.list((dir, name) -> name.startsWith(prefix) && name.substring(prefix.length()).matches("\\d+"));
+        if (names == null) return new long[0];
+        long[] found = Arrays.stream(names).mapToLong(x -> Long.parseLong(x.substring(prefix.length()))).toArray();
+        Arrays.sort(found);
+        return found;
+    }
+}
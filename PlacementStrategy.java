@@ -0,0 +1,26 @@
+import java.util.List;
+
+/**
+ * Chooses which Dstores a newly stored file goes to.
+ * @param <D> Dstore identifier
+ */
+interface PlacementStrategy<D> {
+
+    void addDstore(D dStore);
+
+    void removeDstore(D dStore);
+
+    /**
+     * @param fileName Name of the file being stored
+     * @param size Size of the file in bytes, Dstores with room for it should be preferred
+     * @param replicas Number of distinct Dstores wanted
+     * @return Up to *replicas* distinct Dstores (fewer only if there aren't enough)
+     */
+    List<D> place(String fileName, long size, int replicas);
+
+    /**
+     * Dstores a file belongs on whatever room they have, for rebalancing to prefer when it moves or copies the file.
+     * @return Up to *replicas* distinct Dstores, or none if this strategy doesn't tie files to Dstores
+     */
+    default List<D> owners(String fileName, int replicas) { return List.of(); }
+}
@@ -0,0 +1,125 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket limiting the bytes per second sent by everything that shares it. Tokens build up at the rate to at most
+ * a tenth of a second's worth, so traffic can't burst far past the rate after a quiet spell. Bytes are taken even when
+ * there aren't enough tokens, leaving a debt that later senders wait out, so a write bigger than the bucket still goes through.
+ * Priority senders go first: while one is waiting for tokens, no other sender takes any.
+ */
+final class RateLimiter {
+
+    /** Most bytes written at a time through a throttled channel, so a big write doesn't go out as one burst and a new rate applies soon */
+    private static final int CHUNK = 64 * 1024;
+    private static final long MIN_BURST = 64 * 1024;
+
+    private long rate; //Bytes per second, 0 for no limit
+    private double tokens = 0;
+    private long refilled = System.nanoTime();
+    private int priorityWaiting = 0;
+
+    /**
+     * @param rate Bytes per second, 0 for no limit
+     */
+    RateLimiter(long rate) { setRate(rate); }
+
+    /**
+     * Change the rate, which senders already waiting pick up straight away.
+     * @param rate Bytes per second, 0 for no limit
+     */
+    synchronized void setRate(long rate) {
+        if (rate < 0) throw new IllegalArgumentException("Negative rate: " + rate);
+        refill();
+        this.rate = rate;
+        tokens = Math.min(tokens, burst());
+        notifyAll();
+    }
+
+    synchronized long getRate() { return rate; }
+
+    private double burst() { return Math.max(MIN_BURST, rate / 10.0); }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (rate > 0) tokens = Math.min(burst(), tokens + (now - refilled) * rate / 1e9);
+        refilled = now;
+    }
+
+    /**
+     * Wait until the bytes can be sent.
+     * @param priority Whether the sender goes ahead of those that aren't
+     */
+    synchronized void acquire(long bytes, boolean priority) throws InterruptedException {
+        if (priority) priorityWaiting++;
+        try {
+            while (true) {
+                refill();
+                if (rate == 0) return;
+                if (tokens > 0 && (priority || priorityWaiting == 0)) {
+                    tokens -= bytes;
+                    return;
+                }
+                long waitNanos = tokens > 0 ? TimeUnit.MILLISECONDS.toNanos(10) : (long) (-tokens * 1e9 / rate) + 1;
+                TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+            }
+        } finally {
+            if (priority && --priorityWaiting == 0) notifyAll();
+        }
+    }
+
+    /**
+     * A channel that writes through to out within the limit.
+     * @param priority Whether the writes go ahead of those that aren't
+     */
+    Throttled throttle(WritableByteChannel out, boolean priority) { return new Throttled(out, priority); }
+
+    /**
+     * Writes through to a channel within the limit. The rate is checked before every write, so a change applies part way
+     * through a send, and while there is no limit writes go straight through whole.
+     * File content is sent with transferFrom, which gives transferTo the channel itself so a socket keeps its zero-copy path.
+     */
+    final class Throttled implements WritableByteChannel {
+        private final WritableByteChannel out;
+        private final boolean priority;
+
+        private Throttled(WritableByteChannel out, boolean priority) {
+            this.out = out;
+            this.priority = priority;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (getRate() == 0) return out.write(src);
+            ByteBuffer chunk = src.slice(src.position(), Math.min(src.remaining(), CHUNK));
+            take(chunk.remaining());
+            int written = out.write(chunk);
+            src.position(src.position() + written);
+            return written;
+        }
+
+        /**
+         * Send up to a chunk of a file with transferTo, once the limit allows it.
+         * @return Bytes sent, as transferTo returns
+         */
+        long transferFrom(FileChannel in, long position, long count) throws IOException {
+            long slice = Math.min(count, CHUNK);
+            take(slice);
+            return in.transferTo(position, slice, out);
+        }
+
+        private void take(long bytes) throws IOException {
+            try { acquire(bytes, priority); }
+            catch (InterruptedException e) { throw new InterruptedIOException("Interrupted waiting to send"); }
+        }
+
+        @Override
+        public boolean isOpen() { return out.isOpen(); }
+
+        @Override
+        public void close() throws IOException { out.close(); }
+    }
+}
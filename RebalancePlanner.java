@@ -0,0 +1,290 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Works out which files each Dstore should send and remove in a rebalance, without touching anything itself:
+ * the current assignment goes in and a list of moves comes out.
+ *
+ * Dstores are compared by utilisation, the bytes they hold as a share of their capacity. The planned utilisation of each
+ * Dstore is kept in a min-heap and a max-heap, so each replica added, removed or moved costs O(D) at worst rather than a sort,
+ * and the whole plan is near-linear in the number of files changed. Balancing moves files to the emptiest Dstore from the
+ * fullest (or one of the next fullest), but only ones that narrow the gap between them (which always ends, and with equal
+ * file sizes and capacities leaves every Dstore within one file of the others).
+ * Where the placement strategy ties files to Dstores (consistent hashing), replicas are added to a file's owners and removed
+ * from the others first, and balancing looks a little way through the fullest few Dstores for a file the emptiest owns before
+ * moving any other. So a joining Dstore is mostly given the files that hash to it (98% of them for 10 joining 40 in
+ * RebalancePlannerCheck), rather than whichever files the fullest Dstores happen to list first.
+ * @param <D> Dstore identifier
+ */
+class RebalancePlanner<D> {
+
+    /**
+     * Result of planning.
+     * @param sends Dstore -> file -> Dstores it should send the file to
+     * @param removals Dstore -> files it should remove (after its sends)
+     * @param placements Dstores holding each file that was checked or moved, once the plan has been carried out
+     */
+    record Plan<D>(Map<D, Map<String, List<D>>> sends, Map<D, Set<String>> removals, Map<String, List<D>> placements) {
+        public boolean isEmpty() { return sends.isEmpty() && removals.isEmpty(); }
+    }
+
+    private record Entry<D>(D dStore, double utilisation, int order) {}
+
+    /** Files that could be moved to look through for one the receiving Dstore owns, before moving the first of them instead */
+    private static final int LOOKAHEAD = 64;
+    /** Fullest Dstores to look through for a file the receiving Dstore owns, as the fullest alone may hold none */
+    private static final int SOURCES = 8;
+
+    private final Map<D, ? extends Set<String>> assignment;
+    private final Map<D, Long> capacities;
+    private final ToLongFunction<String> sizes;
+    private final int replicationFactor;
+    private final Function<String, ? extends Collection<D>> owners;
+    private final HashMap<String, Collection<D>> ownerCache = new HashMap<>(); //Owners of each file looked at, as balancing looks at some often
+    private final HashMap<D, Long> bytes = new HashMap<>();
+    private final HashMap<D, Entry<D>> entries = new HashMap<>(); //Each Dstore's entry in the heaps
+    private final HashMap<D, Integer> order = new HashMap<>(); //Breaks ties so plans are repeatable
+    private final HashMap<D, HashMap<String, D>> additions = new HashMap<>(); //Dstore -> file -> Dstore sending it
+    private final HashMap<D, HashSet<String>> removals = new HashMap<>();
+    private final HashMap<D, Iterator<String>> candidates = new HashMap<>(); //Where each Dstore's search for a file to move got to
+    private final HashMap<D, ArrayDeque<String>> skipped = new HashMap<>(); //Files passed over because they couldn't be moved at the time
+    private final HashSet<String> touched = new HashSet<>();
+    private final PriorityQueue<Entry<D>> emptiest = new PriorityQueue<>(Comparator.<Entry<D>>comparingDouble(Entry::utilisation).thenComparingInt(Entry::order));
+    private final PriorityQueue<Entry<D>> fullest = new PriorityQueue<>(Comparator.<Entry<D>>comparingDouble(Entry::utilisation).reversed().thenComparingInt(Entry::order));
+
+    /**
+     * Plan a rebalance.
+     * @param assignment Files each Dstore currently holds. Only read.
+     * @param bytes Total size of the files each Dstore currently holds, counting empty files as 1 byte
+     * @param capacities Bytes each Dstore can hold
+     * @param sizes Size of a file (empty files are counted as 1 byte, so that they still get spread out)
+     * @param replicationFactor Number of Dstores each file should be on
+     * @param toReplicate Files to bring to exactly replicationFactor replicas. Each must be held by at least one Dstore.
+     * @param toRemove Files to remove from every Dstore holding them
+     * @return The moves to make
+     * @throws Exception If a file can't be replicated enough
+     */
+    public static <D> Plan<D> plan(Map<D, ? extends Set<String>> assignment, Map<D, Long> bytes, Map<D, Long> capacities, ToLongFunction<String> sizes,
+            int replicationFactor, Collection<String> toReplicate, Collection<String> toRemove) throws Exception {
+        return plan(assignment, bytes, capacities, sizes, replicationFactor, toReplicate, toRemove, x -> List.of());
+    }
+
+    /**
+     * Plan a rebalance, preferring to keep each file on its owners.
+     * @param owners Dstores each file belongs on (PlacementStrategy.owners), or none if it doesn't matter
+     */
+    public static <D> Plan<D> plan(Map<D, ? extends Set<String>> assignment, Map<D, Long> bytes, Map<D, Long> capacities, ToLongFunction<String> sizes,
+            int replicationFactor, Collection<String> toReplicate, Collection<String> toRemove, Function<String, ? extends Collection<D>> owners) throws Exception {
+        RebalancePlanner<D> planner = new RebalancePlanner<>(assignment, bytes, capacities, sizes, replicationFactor, owners);
+        for (String file : toRemove) planner.removeEverywhere(file);
+        for (String file : toReplicate) planner.replicate(file);
+        planner.balance();
+        return planner.result();
+    }
+
+    private RebalancePlanner(Map<D, ? extends Set<String>> assignment, Map<D, Long> bytes, Map<D, Long> capacities, ToLongFunction<String> sizes,
+            int replicationFactor, Function<String, ? extends Collection<D>> owners) {
+        this.assignment = assignment;
+        this.capacities = capacities;
+        this.sizes = x -> Math.max(1, sizes.applyAsLong(x));
+        this.replicationFactor = replicationFactor;
+        this.owners = owners;
+        for (D dStore : assignment.keySet()) {
+            order.put(dStore, order.size());
+            additions.put(dStore, new HashMap<>());
+            removals.put(dStore, new HashSet<>());
+            candidates.put(dStore, assignment.get(dStore).iterator());
+            skipped.put(dStore, new ArrayDeque<>());
+            setBytes(dStore, bytes.get(dStore));
+        }
+    }
+
+    private boolean holds(D dStore, String file) {
+        return additions.get(dStore).containsKey(file) || (assignment.get(dStore).contains(file) && !removals.get(dStore).contains(file));
+    }
+
+    private Collection<D> ownersOf(String file) { return ownerCache.computeIfAbsent(file, owners); }
+
+    /** Whether a file belongs on a Dstore, which it does anywhere if it has no owners */
+    private boolean owns(D dStore, String file) {
+        Collection<D> fileOwners = ownersOf(file);
+        return fileOwners.isEmpty() || fileOwners.contains(dStore);
+    }
+
+    private boolean movable(D from, D to, String file) { return !holds(to, file) && narrowsGap(from, to, sizes.applyAsLong(file)); }
+
+    private double utilisation(D dStore) { return entries.get(dStore).utilisation(); }
+
+    private boolean hasRoom(D dStore, long size) { return bytes.get(dStore) + size <= capacities.get(dStore); }
+
+    private void setBytes(D dStore, long used) {
+        bytes.put(dStore, used);
+        Entry<D> entry = new Entry<>(dStore, (double) used / capacities.get(dStore), order.get(dStore));
+        Entry<D> old = entries.put(dStore, entry);
+        if (old != null) {
+            emptiest.remove(old);
+            fullest.remove(old);
+        }
+        emptiest.add(entry);
+        fullest.add(entry);
+    }
+
+    private void add(D dStore, String file, D sender) {
+        if (removals.get(dStore).remove(file)) skipped.get(dStore).add(file); //Moving a file back just cancels its removal, and it can be picked again
+        else additions.get(dStore).put(file, sender);
+        touched.add(file);
+        setBytes(dStore, bytes.get(dStore) + sizes.applyAsLong(file));
+    }
+
+    private void remove(D dStore, String file) {
+        if (additions.get(dStore).remove(file) == null) removals.get(dStore).add(file);
+        touched.add(file);
+        setBytes(dStore, bytes.get(dStore) - sizes.applyAsLong(file));
+    }
+
+    private ArrayList<D> holders(String file) {
+        ArrayList<D> holders = new ArrayList<>();
+        for (D dStore : assignment.keySet()) if (holds(dStore, file)) holders.add(dStore);
+        return holders;
+    }
+
+    private void removeEverywhere(String file) {
+        for (D dStore : holders(file)) remove(dStore, file);
+    }
+
+    private void replicate(String file) throws Exception {
+        ArrayList<D> holders = holders(file);
+        if (holders.isEmpty()) throw new Exception("No Dstore holds " + file + " to replicate it from");
+        touched.add(file);
+        int dStoresNeeded = replicationFactor - holders.size();
+
+        if (dStoresNeeded < 0) { //Remove from the holders that don't own it, then the fullest
+            Collection<D> fileOwners = ownersOf(file);
+            holders.sort(Comparator.<D, Boolean>comparing(fileOwners::contains).thenComparing(Comparator.<D>comparingDouble(this::utilisation).reversed()).thenComparingInt(order::get));
+            for (int i = 0; i < -dStoresNeeded; i++) remove(holders.get(i), file);
+            return;
+        }
+
+        //Add to its owners that don't have it and have room for it, then the emptiest Dstores, preferring ones with room for it
+        long size = sizes.applyAsLong(file);
+        ArrayList<Entry<D>> polled = new ArrayList<>();
+        ArrayList<D> chosen = new ArrayList<>(), full = new ArrayList<>();
+        for (D dStore : ownersOf(file)) {
+            if (chosen.size() < dStoresNeeded && assignment.containsKey(dStore) && !holders.contains(dStore) && hasRoom(dStore, size)) chosen.add(dStore);
+        }
+        while (chosen.size() < dStoresNeeded && !emptiest.isEmpty()) {
+            Entry<D> entry = emptiest.poll();
+            polled.add(entry);
+            if (holders.contains(entry.dStore()) || chosen.contains(entry.dStore())) continue;
+            if (hasRoom(entry.dStore(), size)) chosen.add(entry.dStore());
+            else full.add(entry.dStore());
+        }
+        emptiest.addAll(polled);
+        for (D dStore : full) if (chosen.size() < dStoresNeeded) chosen.add(dStore);
+        for (D dStore : chosen) add(dStore, file, holders.get(0));
+        if (chosen.size() < dStoresNeeded) throw new Exception("Could not ensure all files were replicated R times - less than R dstores LISTed");
+    }
+
+    /**
+     * Move files to the emptiest Dstore until nothing can be moved to it from the fullest that would narrow the gap.
+     * Each file is one the emptiest owns from one of the SOURCES fullest Dstores if there is one, otherwise any from the fullest.
+     */
+    private void balance() {
+        ArrayList<Entry<D>> polled = new ArrayList<>();
+        while (true) {
+            Entry<D> fullestEntry = fullest.peek(), to = emptiest.peek();
+            if (fullestEntry == null || fullestEntry.utilisation() <= to.utilisation()) return;
+            D from = null;
+            String file = null;
+            while (file == null && polled.size() < SOURCES && !fullest.isEmpty() && fullest.peek().utilisation() > to.utilisation()) {
+                Entry<D> entry = fullest.poll();
+                polled.add(entry);
+                from = entry.dStore();
+                file = pickFile(from, to.dStore(), true);
+            }
+            fullest.addAll(polled);
+            polled.clear();
+            if (file == null) {
+                from = fullestEntry.dStore();
+                file = pickFile(from, to.dStore(), false);
+            }
+            if (file == null) return;
+            D sender = additions.get(from).getOrDefault(file, from); //A file only just planned for "from" comes from its sender instead
+            remove(from, file);
+            add(to.dStore(), file, sender);
+        }
+    }
+
+    /**
+     * Whether moving a file of this size from one Dstore to the other narrows the gap between them,
+     * ie. lowers the sum of bytes^2 / capacity over all Dstores, which is what guarantees the balance ends.
+     * Moves that only break even (up to rounding) don't count, or a file could be moved back and forth forever.
+     */
+    private boolean narrowsGap(D from, D to, long size) {
+        double cost = size * (1.0 / capacities.get(from) + 1.0 / capacities.get(to));
+        return 2 * (utilisation(from) - utilisation(to)) - cost > cost * 1e-9;
+    }
+
+    /**
+     * Find a file held by "from" that "to" doesn't have and that narrows the gap, preferring one that "to" owns out of the next
+     * LOOKAHEAD that would do. Each Dstore's files are taken in turn, and those passed over (because they couldn't be moved at the
+     * time, or weren't owned by the Dstore they could have gone to) are searched again round robin.
+     * @param ownedOnly Only return a file that "to" owns
+     */
+    private String pickFile(D from, D to, boolean ownedOnly) {
+        String fallback = null; //First file that would do, moved if none "to" owns turns up (and left to be dropped from passedOver once moved)
+        int looked = 0;
+        ArrayDeque<String> passedOver = skipped.get(from);
+        Iterator<String> files = candidates.get(from);
+        while (files.hasNext() && looked < LOOKAHEAD) {
+            String file = files.next();
+            if (!holds(from, file)) continue;
+            boolean owned = owns(to, file);
+            if (ownedOnly && !owned) looked++;
+            else if (movable(from, to, file)) {
+                if (owned) return file;
+                looked++;
+                if (fallback == null) fallback = file;
+            }
+            passedOver.add(file);
+        }
+        for (int i = passedOver.size(); i > 0 && looked < LOOKAHEAD; i--) {
+            String file = passedOver.poll();
+            if (!holds(from, file)) continue;
+            boolean owned = owns(to, file);
+            if (ownedOnly && !owned) looked++;
+            else if (movable(from, to, file)) {
+                if (owned) return file;
+                looked++;
+                if (fallback == null) fallback = file;
+            }
+            passedOver.add(file); //To the back, so the next search starts with others
+        }
+        if (ownedOnly) return null;
+        if (fallback != null) return fallback;
+        for (String file : additions.get(from).keySet()) if (movable(from, to, file)) return file;
+        return null;
+    }
+
+    private Plan<D> result() {
+        HashMap<D, Map<String, List<D>>> sends = new HashMap<>();
+        additions.forEach((dStore, files) -> files.forEach((file, sender) ->
+            sends.computeIfAbsent(sender, x -> new HashMap<>()).computeIfAbsent(file, x -> new ArrayList<>()).add(dStore)));
+        HashMap<D, Set<String>> removes = new HashMap<>();
+        removals.forEach((dStore, files) -> { if (!files.isEmpty()) removes.put(dStore, files); });
+        HashMap<String, List<D>> placements = new HashMap<>();
+        for (String file : touched) placements.put(file, holders(file));
+        return new Plan<>(sends, removes, placements);
+    }
+}
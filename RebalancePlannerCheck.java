@@ -0,0 +1,186 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks RebalancePlanner against random clusters, and times it planning a large one.
+ * Every plan is carried out on a copy of its cluster and must leave each file to replicate on exactly R Dstores,
+ * each file to remove on none, and the Dstores balanced: within one file of each other when sizes and capacities are equal,
+ * and otherwise with no file left that the fullest Dstore could move to the emptiest to narrow the gap between them.
+ * Half the clusters are planned with owners from a consistent hashing ring, which must not change any of that.
+ *
+ * Usage: RebalancePlannerCheck [clusters] [files_to_time] [seed]
+ */
+class RebalancePlannerCheck {
+
+    public static void main(String[] args) throws Exception {
+        int clusters = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int timedFiles = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : System.nanoTime();
+        System.out.println("Seed " + seed);
+        Random random = new Random(seed);
+        for (int i = 0; i < clusters; i++) {
+            try { checkRandomCluster(random, i % 2 == 0, i % 4 >= 2); }
+            catch (AssertionError | Exception e) { throw new AssertionError("Cluster " + i + " failed (seed " + seed + ")", e); }
+        }
+        System.out.println(clusters + " random clusters passed");
+        if (timedFiles > 0) time(timedFiles);
+    }
+
+    /**
+     * Plan a rebalance of a random cluster and check the result.
+     * @param uniform Whether every file is the same size and every Dstore the same capacity
+     * @param owned Whether files have owners on a consistent hashing ring
+     */
+    private static void checkRandomCluster(Random random, boolean uniform, boolean owned) throws Exception {
+        int dStores = 1 + random.nextInt(12);
+        int replicationFactor = 1 + random.nextInt(Math.min(3, dStores));
+        int files = random.nextInt(200);
+        HashMap<Integer, Set<String>> assignment = new HashMap<>();
+        HashMap<Integer, Long> capacities = new HashMap<>();
+        HashMap<String, Long> sizes = new HashMap<>();
+        for (int d = 0; d < dStores; d++) {
+            assignment.put(d, new HashSet<>());
+            capacities.put(d, uniform ? 1L << 40 : (1L + random.nextInt(100)) << 20);
+        }
+
+        ArrayList<String> toReplicate = new ArrayList<>(), toRemove = new ArrayList<>();
+        for (int f = 0; f < files; f++) {
+            String file = "file" + f;
+            sizes.put(file, uniform ? 1000 : (long) random.nextInt(1 << 20)); //Includes empty files
+            int holders = 1 + random.nextInt(dStores); //Under, exactly and over replicated
+            ArrayList<Integer> order = new ArrayList<>(assignment.keySet());
+            Collections.shuffle(order, random);
+            for (int d : order.subList(0, holders)) assignment.get(d).add(file);
+            if (random.nextInt(10) == 0) toRemove.add(file);
+            else toReplicate.add(file);
+        }
+
+        HashMap<Integer, Long> bytes = new HashMap<>();
+        for (int d : assignment.keySet()) bytes.put(d, bytesOf(assignment.get(d), sizes));
+
+        PlacementStrategy<Integer> ring = ring(owned ? dStores : 0);
+        RebalancePlanner.Plan<Integer> plan = RebalancePlanner.plan(assignment, bytes, capacities, sizes::get, replicationFactor, toReplicate, toRemove,
+            x -> ring.owners(x, replicationFactor));
+        Map<Integer, Set<String>> after = apply(assignment, plan);
+
+        for (String file : toReplicate) {
+            List<Integer> holders = holders(after, file);
+            check(holders.size() == replicationFactor, file + " is on " + holders.size() + " Dstores, not " + replicationFactor);
+            check(new HashSet<>(holders).equals(new HashSet<>(plan.placements().get(file))), "Placement of " + file + " doesn't match the moves");
+        }
+        for (String file : toRemove) check(holders(after, file).isEmpty(), file + " wasn't removed everywhere");
+
+        if (uniform) {
+            int most = after.values().stream().mapToInt(Set::size).max().orElse(0);
+            int least = after.values().stream().mapToInt(Set::size).min().orElse(0);
+            check(most - least <= 1, "Dstores hold between " + least + " and " + most + " files");
+        } else checkNoMoveNarrowsGap(after, sizes, capacities);
+    }
+
+    /**
+     * Carry out a plan on a copy of the assignment, checking each move makes sense: senders hold what they send,
+     * receivers don't already have it, and only files that are held are removed.
+     */
+    private static Map<Integer, Set<String>> apply(Map<Integer, Set<String>> assignment, RebalancePlanner.Plan<Integer> plan) {
+        HashMap<Integer, Set<String>> after = new HashMap<>();
+        assignment.forEach((d, files) -> after.put(d, new HashSet<>(files)));
+        plan.sends().forEach((sender, files) -> files.forEach((file, receivers) -> {
+            check(assignment.get(sender).contains(file), "Dstore " + sender + " sends " + file + " which it doesn't hold");
+            for (int receiver : receivers) {
+                check(!assignment.get(receiver).contains(file), "Dstore " + receiver + " is sent " + file + " which it already holds");
+                after.get(receiver).add(file);
+            }
+        }));
+        plan.removals().forEach((d, files) -> {
+            for (String file : files) check(after.get(d).remove(file), "Dstore " + d + " removes " + file + " which it doesn't hold");
+        });
+        return after;
+    }
+
+    /**
+     * The balance ends when nothing the fullest Dstore holds (and the emptiest doesn't) would narrow the gap if moved.
+     */
+    private static void checkNoMoveNarrowsGap(Map<Integer, Set<String>> after, Map<String, Long> sizes, Map<Integer, Long> capacities) {
+        int fullest = -1, emptiest = -1;
+        double most = -1, least = Double.MAX_VALUE;
+        for (int d : after.keySet()) {
+            double utilisation = (double) bytesOf(after.get(d), sizes) / capacities.get(d);
+            if (utilisation > most) { most = utilisation; fullest = d; }
+            if (utilisation < least) { least = utilisation; emptiest = d; }
+        }
+        for (String file : after.get(fullest)) {
+            if (after.get(emptiest).contains(file)) continue;
+            double cost = Math.max(1, sizes.get(file)) * (1.0 / capacities.get(fullest) + 1.0 / capacities.get(emptiest));
+            check(2 * (most - least) - cost <= cost * 1e-6, "Moving " + file + " from Dstore " + fullest + " to " + emptiest + " would narrow the gap");
+        }
+    }
+
+    /** A consistent hashing ring of Dstores 0 to dStores - 1, all with plenty of room */
+    private static PlacementStrategy<Integer> ring(int dStores) {
+        ConsistentHashPlacement<Integer> ring = new ConsistentHashPlacement<>(x -> Integer.toString(x), x -> Long.MAX_VALUE);
+        for (int d = 0; d < dStores; d++) ring.addDstore(d);
+        return ring;
+    }
+
+    /**
+     * Time planning a cluster of files at R=3 on 40 Dstores, which 10 new, empty Dstores have just joined, without and with
+     * owners from a consistent hashing ring (the files start on their owners among the 40), and count the files sent to their owners.
+     */
+    private static void time(int files) throws Exception {
+        time(files, false);
+        time(files, true);
+    }
+
+    private static void time(int files, boolean owned) throws Exception {
+        int dStores = 50, joined = 10, replicationFactor = 3;
+        HashMap<Integer, Set<String>> assignment = new HashMap<>();
+        HashMap<Integer, Long> bytes = new HashMap<>(), capacities = new HashMap<>();
+        for (int d = 0; d < dStores; d++) {
+            assignment.put(d, new HashSet<>());
+            capacities.put(d, 1L << 40);
+        }
+        PlacementStrategy<Integer> before = ring(owned ? dStores - joined : 0), after = ring(owned ? dStores : 0);
+        ArrayList<String> toReplicate = new ArrayList<>();
+        for (int f = 0; f < files; f++) {
+            String file = "file" + f;
+            if (owned) for (int d : before.owners(file, replicationFactor)) assignment.get(d).add(file);
+            else for (int r = 0; r < replicationFactor; r++) assignment.get((f + r) % (dStores - joined)).add(file);
+            toReplicate.add(file);
+        }
+        for (int d : assignment.keySet()) bytes.put(d, (long) assignment.get(d).size() * 1000);
+
+        long start = System.nanoTime();
+        RebalancePlanner.Plan<Integer> plan = RebalancePlanner.plan(assignment, bytes, capacities, x -> 1000, replicationFactor, toReplicate, List.of(),
+            x -> after.owners(x, replicationFactor));
+        long millis = (System.nanoTime() - start) / 1000000;
+        long moves = 0, toOwners = 0;
+        for (Map<String, List<Integer>> sends : plan.sends().values()) {
+            for (Map.Entry<String, List<Integer>> send : sends.entrySet()) {
+                moves += send.getValue().size();
+                if (owned) toOwners += send.getValue().stream().filter(after.owners(send.getKey(), replicationFactor)::contains).count();
+            }
+        }
+        System.out.println(files + " files at R=" + replicationFactor + " onto " + joined + " new Dstores (" + dStores + " in all" + (owned ? ", with owners" : "") + "): "
+            + moves + " moves planned in " + millis + "ms" + (owned ? ", " + toOwners + " of them to the file's owners" : ""));
+    }
+
+    private static long bytesOf(Set<String> files, Map<String, Long> sizes) {
+        return files.stream().mapToLong(x -> Math.max(1, sizes.get(x))).sum();
+    }
+
+    private static List<Integer> holders(Map<Integer, Set<String>> assignment, String file) {
+        ArrayList<Integer> holders = new ArrayList<>();
+        assignment.forEach((d, files) -> { if (files.contains(file)) holders.add(d); });
+        return holders;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+}
@@ -0,0 +1,201 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/**
+ * Non-blocking front end that serves every connection from a single selector thread.
+ * Lines are decoded incrementally from pooled buffers and handed, in order, to the connection they belong to on the shared executor,
+ * so a connection only occupies a thread while it has messages to handle.
+ */
+class SelectorLoop implements Runnable {
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int POOL_SIZE = 64;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final BiConsumer<LineChannel, String> firstLineHandler;
+    private final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<>(); //Only touched by the selector thread
+
+    /**
+     * Bind the server channel, ready for run() to start accepting connections.
+     * @param port Port to listen on
+     * @param firstLineHandler Called with the first line of each new connection. Should attach a ConnectionThread to the channel.
+     */
+    public SelectorLoop(int port, BiConsumer<LineChannel, String> firstLineHandler) throws IOException {
+        this.firstLineHandler = firstLineHandler;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    @Override
+    public void run() {
+        Logger.info("Selector loop started", this);
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.attachment() == null) { accept(); continue; }
+                    LineChannel channel = (LineChannel) key.attachment();
+                    try {
+                        if (key.isReadable()) channel.read();
+                        if (key.isValid() && key.isWritable()) channel.flush();
+                    } catch (IOException | CancelledKeyException e) { channel.peerClosed(); }
+                }
+            }
+        } catch (IOException e) { Logger.err("The selector loop stopped, meaning nothing new can connect", e, this); }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel socketChannel = serverChannel.accept();
+        if (socketChannel == null) return;
+        socketChannel.configureBlocking(false);
+        SelectionKey key = socketChannel.register(selector, SelectionKey.OP_READ);
+        key.attach(new LineChannel(socketChannel, key));
+    }
+
+    /**
+     * One non-blocking connection. Received lines are queued and delivered by at most one executor task at a time.
+     */
+    class LineChannel {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+        private final ConcurrentLinkedQueue<Runnable> received = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean draining = new AtomicBoolean(false);
+        private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+        private boolean reading = true; //Guarded by pendingWrites, like the interest ops
+        private volatile ConnectionThread<?> connection;
+
+        private LineChannel(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        public Socket socket() { return channel.socket(); }
+        public void attach(ConnectionThread<?> connection) { this.connection = connection; }
+
+        /**
+         * Read whatever is available into a pooled buffer and queue every complete line. Called on the selector thread.
+         */
+        private void read() throws IOException {
+            ByteBuffer buffer = bufferPool.isEmpty() ? ByteBuffer.allocateDirect(BUFFER_SIZE) : bufferPool.pop();
+            try {
+                if (channel.read(buffer) < 0) {
+                    peerClosed();
+                    return;
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (b != '\n') { partialLine.write(b); continue; }
+                    String line = partialLine.toString(StandardCharsets.UTF_8);
+                    partialLine.reset();
+                    String message = line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+                    enqueue(() -> deliver(message));
+                }
+            } finally {
+                buffer.clear();
+                if (bufferPool.size() < POOL_SIZE) bufferPool.push(buffer);
+            }
+        }
+
+        private void peerClosed() {
+            key.cancel();
+            enqueue(() -> {
+                if (connection != null) connection.close();
+                else close();
+            });
+        }
+
+        private void deliver(String message) {
+            if (connection == null) firstLineHandler.accept(this, message);
+            else connection.handleMessage(message);
+        }
+
+        private void enqueue(Runnable task) {
+            received.add(task);
+            if (draining.compareAndSet(false, true)) ConnectionThread.executor.execute(this::drain);
+        }
+
+        private void drain() {
+            Runnable task;
+            while ((task = received.poll()) != null) {
+                if (connection != null) Thread.currentThread().setName(connection.name);
+                task.run();
+            }
+            draining.set(false);
+            if (!received.isEmpty() && draining.compareAndSet(false, true)) ConnectionThread.executor.execute(this::drain);
+        }
+
+        /**
+         * Write a line, or queue it until the selector reports the channel as writable. Callable from any thread.
+         * @param message Line to send
+         */
+        public void send(String message) {
+            synchronized (pendingWrites) {
+                pendingWrites.add(StandardCharsets.UTF_8.encode(message + "\n"));
+                try { flushPending(); }
+                catch (IOException | CancelledKeyException e) { Logger.err("Could not send message: " + message, e, this); }
+            }
+        }
+
+        /**
+         * Stop or start reading from the channel, so lines don't pile up in the queue while the connection can't take any more.
+         * Callable from any thread.
+         */
+        public void setReading(boolean reading) {
+            synchronized (pendingWrites) {
+                this.reading = reading;
+                try { updateInterest(); }
+                catch (CancelledKeyException e) { } //Closed, so there is nothing left to read
+            }
+        }
+
+        private void flush() throws IOException {
+            synchronized (pendingWrites) { flushPending(); }
+        }
+
+        private void flushPending() throws IOException {
+            while (!pendingWrites.isEmpty()) {
+                ByteBuffer head = pendingWrites.peek();
+                channel.write(head);
+                if (head.hasRemaining()) break;
+                pendingWrites.poll();
+            }
+            updateInterest();
+        }
+
+        private void updateInterest() {
+            int ops = (reading ? SelectionKey.OP_READ : 0) | (pendingWrites.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+            if (key.isValid() && key.interestOps() != ops) {
+                key.interestOps(ops);
+                selector.wakeup();
+            }
+        }
+
+        public void close() {
+            key.cancel();
+            try { channel.close(); }
+            catch (IOException e) { Logger.err("Problem closing the channel", e, this); }
+        }
+    }
+}
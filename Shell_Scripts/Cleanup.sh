@@ -2,6 +2,21 @@
 # Recompiles all java classes for use in development
 rm *.class
 javac Logger.java
+javac Wire.java
+javac SelectorLoop.java
 javac ConnectionThread.java
+javac MetadataLog.java
+javac RebalancePlanner.java
+javac PlacementStrategy.java
+javac ConsistentHashPlacement.java
+javac LinkPool.java
+javac RateLimiter.java
+javac Compression.java
+javac FileCache.java
 javac Controller.java
-javac Dstore.java
\ No newline at end of file
+javac Dstore.java
+javac WireBench.java
+javac RebalancePlannerCheck.java
+javac DeltaRebalanceBench.java
+javac LoadBench.java
+javac FrontEndBench.java
\ No newline at end of file
@@ -1,2 +1,2 @@
 #!/bin/bash
-java Controller $1 $2 $3 $4
\ No newline at end of file
+java Controller $1 $2 $3 $4 $5
\ No newline at end of file
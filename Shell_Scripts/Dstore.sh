@@ -1,2 +1,2 @@
 #!/bin/bash
-java Dstore $1 $2 $3 $4
\ No newline at end of file
+java Dstore $1 $2 $3 $4 $5
\ No newline at end of file
@@ -0,0 +1,289 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The binary form of the protocol, which a connection can switch to instead of lines of text.
+ * The side that connects sends the line HELLO first, and if the other side replies with HELLO too, both then send frames:
+ * the frame's length as a varint, then the command's opcode as a varint (0 if it has none, followed by the command as a field),
+ * the number of fields as a varint and the fields. Each field starts with a varint that is either its length in bytes
+ * shifted left by one, followed by its UTF-8 bytes, or a zigzag encoded number shifted left by one with the low bit set.
+ * Fields are carried as they are, so they can hold spaces (unlike the text form, which splits on them).
+ */
+final class Wire {
+
+    /** Offered and accepted to switch to frames. The version is bumped if the framing or opcodes change */
+    static final String HELLO = "PROTOCOL binary 1";
+    /** Largest frame read, to catch a peer that isn't speaking the protocol */
+    private static final int MAX_FRAME = 1 << 30;
+    /** Commands with an opcode, which is their position plus one. Only ever added to the end, within a version */
+    private static final List<String> OPCODES = List.of("JOIN", "STATUS", "LIST", "LIST_SINCE", "LIST_DELTA", "LIST_FULL", "LIST_PAGE",
+        "STORE", "STORE_TO", "STORE_ACK", "STORE_COMPLETE", "STORE_CHUNKS", "STORE_TO_CHUNKS", "STORE_CHAIN", "CHAIN_ACK",
+        "LOAD", "LOAD_FROM", "LOAD_DATA", "LOAD_CHECKED", "LOAD_CHUNKS", "LOAD_FROM_CHUNKS", "LOAD_REPLICAS", "LOAD_FROM_REPLICAS",
+        "LOAD_DONE", "RELOAD", "REMOVE", "REMOVE_ACK", "REMOVE_COMPLETE", "REBALANCE", "REBALANCE_STORE", "REBALANCE_COMPLETE",
+        "ACK", "HAVE", "STORED", "DATA", "CACHE_STATS", "ID", "REBALANCE_BATCH", "NEED", "THROTTLE", "THROTTLE_COMPLETE");
+    private static final HashMap<String, Integer> OPCODE_OF = new HashMap<>();
+    static { for (int i = 0; i < OPCODES.size(); i++) OPCODE_OF.put(OPCODES.get(i), i + 1); }
+
+    private Wire() {}
+
+    /**
+     * Offer to switch a connection to frames, and wait for the reply.
+     * @param in Where the reply is read from. Nothing should have been sent to this side before the reply
+     * @return Whether the other side accepted, otherwise the connection carries on as text
+     */
+    static boolean negotiate(InputStream in, OutputStream out) throws IOException {
+        out.write((HELLO + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        return HELLO.equals(readLine(in));
+    }
+
+    /**
+     * Read a line of text a byte at a time, so nothing after it is taken from the stream.
+     * @return The line, or null at the end of the stream
+     */
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+            line.write(b);
+        }
+        String text = line.toString(StandardCharsets.UTF_8);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    /**
+     * Write a message as a frame (not flushed).
+     * @param fields The command followed by its arguments
+     */
+    static void write(OutputStream out, List<String> fields) throws IOException {
+        Frame body = new Frame(64);
+        Integer opcode = fields.isEmpty() ? null : OPCODE_OF.get(fields.get(0));
+        body.putVarint(opcode == null ? 0 : opcode);
+        int start = opcode == null ? 0 : 1;
+        body.putVarint(fields.size() - start);
+        for (int i = start; i < fields.size(); i++) body.putField(fields.get(i));
+        Frame header = new Frame(5);
+        header.putVarint(body.length);
+        out.write(header.bytes, 0, header.length);
+        out.write(body.bytes, 0, body.length);
+    }
+
+    /**
+     * Read a frame.
+     * @return The command followed by its arguments, or null at the end of the stream
+     */
+    static String[] read(InputStream in) throws IOException {
+        long length = readVarint(in);
+        if (length < 0) return null;
+        if (length > MAX_FRAME) throw new IOException("Frame too long: " + length);
+        byte[] body = in.readNBytes((int) length);
+        if (body.length < length) throw new EOFException("Connection closed part way through a frame");
+        int[] position = {0};
+        long opcode = getVarint(body, position);
+        if (opcode > OPCODES.size()) throw new IOException("Unknown opcode: " + opcode);
+        int start = opcode == 0 ? 0 : 1;
+        long count = getVarint(body, position);
+        if (count > body.length - position[0]) throw new IOException("More fields than fit in the frame: " + count);
+        String[] fields = new String[(int) count + start];
+        if (opcode != 0) fields[0] = OPCODES.get((int) opcode - 1);
+        for (int i = start; i < fields.length; i++) {
+            long header = getVarint(body, position);
+            if ((header & 1) == 1) {
+                long zigzag = header >>> 1;
+                fields[i] = Long.toString((zigzag >>> 1) ^ -(zigzag & 1));
+            } else {
+                long fieldLength = header >>> 1;
+                if (fieldLength > body.length - position[0]) throw new IOException("Field runs past the end of its frame");
+                fields[i] = new String(body, position[0], (int) fieldLength, StandardCharsets.UTF_8);
+                position[0] += (int) fieldLength;
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * The next length bytes of a stream, for reading data sent with its length without reading what follows it.
+     * Closing it doesn't close the stream.
+     */
+    static InputStream limit(InputStream in, long length) {
+        return new FilterInputStream(in) {
+            private long remaining = length;
+
+            @Override
+            public int read() throws IOException {
+                if (remaining <= 0) return -1;
+                int b = in.read();
+                if (b >= 0) remaining--;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining <= 0) return -1;
+                int read = in.read(b, off, (int) Math.min(len, remaining));
+                if (read > 0) remaining -= read;
+                return read;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = in.skip(Math.min(n, remaining));
+                remaining -= skipped;
+                return skipped;
+            }
+
+            @Override
+            public int available() throws IOException { return (int) Math.min(in.available(), remaining); }
+
+            @Override
+            public boolean markSupported() { return false; }
+
+            @Override
+            public void close() {}
+        };
+    }
+
+    /**
+     * A varint, or -1 if the stream ended before it.
+     */
+    private static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) return -1;
+                throw new EOFException("Connection closed part way through a frame");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return checked(value);
+        }
+        throw new IOException("Varint too long");
+    }
+
+    /**
+     * Nothing sent fits in more than 63 bits, so anything that decodes to a negative number came from a broken peer.
+     */
+    private static long checked(long varint) throws IOException {
+        if (varint < 0) throw new IOException("Varint out of range");
+        return varint;
+    }
+
+    private static long getVarint(byte[] bytes, int[] position) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position[0] >= bytes.length) throw new IOException("Varint runs past the end of its frame");
+            byte b = bytes[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return checked(value);
+        }
+        throw new IOException("Varint too long");
+    }
+
+    /**
+     * The number a field is the decimal form of, if it is written the way Long.toString would (so it decodes back the same)
+     * and fits in a field header, otherwise null.
+     */
+    private static Long asNumber(String field) {
+        int length = field.length(), start = length > 0 && field.charAt(0) == '-' ? 1 : 0;
+        if (length == start || length - start > 18) return null;
+        if (field.charAt(start) == '0' && (length - start > 1 || start == 1)) return null; //Leading zeros or -0
+        long value = 0;
+        for (int i = start; i < length; i++) {
+            char c = field.charAt(i);
+            if (c < '0' || c > '9') return null;
+            value = value * 10 + (c - '0');
+        }
+        return start == 1 ? -value : value;
+    }
+
+    /**
+     * A growable byte array that a frame is built in.
+     */
+    private static final class Frame {
+        byte[] bytes;
+        int length = 0;
+
+        Frame(int capacity) { bytes = new byte[capacity]; }
+
+        private void ensure(int extra) {
+            if (length + extra > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+        }
+
+        void putVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        void putField(String field) {
+            Long number = asNumber(field);
+            if (number != null) {
+                putVarint(((number << 1) ^ (number >> 63)) << 1 | 1);
+                return;
+            }
+            byte[] utf8 = field.getBytes(StandardCharsets.UTF_8);
+            putVarint((long) utf8.length << 1);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, bytes, length, utf8.length);
+            length += utf8.length;
+        }
+    }
+
+    /**
+     * A connection to another server (such as a Dstore sending files to another), that offers frames when it is
+     * opened and falls back to text if they aren't accepted. All of its reads go through one buffer, so it should be the only
+     * thing reading from the socket.
+     */
+    static final class Link {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final boolean binary;
+
+        Link(Socket socket, boolean offerBinary) throws IOException {
+            this.socket = socket;
+            in = new BufferedInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream());
+            binary = offerBinary && negotiate(in, out);
+        }
+
+        /**
+         * Send a message, flushed straight away.
+         */
+        void send(String... fields) throws IOException { send(Arrays.asList(fields)); }
+
+        void send(List<String> fields) throws IOException {
+            if (binary) write(out, fields);
+            else out.write((String.join(" ", fields) + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        /** The socket, for sending data after a message */
+        Socket socket() { return socket; }
+
+        /**
+         * Wait for a message.
+         * @return The command followed by its arguments, or null if the connection closed
+         */
+        String[] receive() throws IOException {
+            if (binary) return read(in);
+            String line = readLine(in);
+            return line == null ? null : line.split(" ");
+        }
+    }
+}
@@ -0,0 +1,104 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Times sending big REBALANCE and LIST messages as lines of text and as frames, the way ConnectionThread does:
+ * text is joined with spaces, printed and read back a line at a time and split, frames go through Wire.write and Wire.read.
+ * Each message is encoded into memory and decoded from it, so only the codec is timed, and every decode is checked.
+ *
+ * Usage: WireBench [files] [rounds]
+ */
+class WireBench {
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        bench("REBALANCE", rebalance(files), rounds);
+        bench("LIST", list(files), rounds);
+    }
+
+    /**
+     * "REBALANCE *files_to_send* *file* *ports_to_send_to* *port* ... *files_to_remove* *file* ... *repairs*",
+     * sending each file to two Dstores and removing a tenth as many.
+     */
+    private static List<String> rebalance(int files) {
+        ArrayList<String> message = new ArrayList<>();
+        message.add("REBALANCE");
+        message.add(Integer.toString(files));
+        for (int f = 0; f < files; f++) {
+            message.add("file" + f);
+            message.add("2");
+            message.add(Integer.toString(1234 + f % 40));
+            message.add(Integer.toString(1234 + (f + 1) % 40));
+        }
+        message.add(Integer.toString(files / 10));
+        for (int f = 0; f < files / 10; f++) message.add("removed" + f);
+        message.add(Integer.toString(files / 100));
+        return message;
+    }
+
+    private static List<String> list(int files) {
+        ArrayList<String> message = new ArrayList<>();
+        message.add("LIST");
+        for (int f = 0; f < files; f++) message.add("file" + f);
+        return message;
+    }
+
+    /**
+     * Encode and decode a message in both forms for a number of rounds, after as many to warm up, and print the averages.
+     */
+    private static void bench(String name, List<String> message, int rounds) throws Exception {
+        long[] text = new long[3], frames = new long[3]; //Encode nanos, decode nanos, bytes
+        for (int i = 0; i < 2 * rounds; i++) {
+            boolean timed = i >= rounds;
+            roundTrip(message, false, timed ? text : new long[3]);
+            roundTrip(message, true, timed ? frames : new long[3]);
+        }
+        System.out.println(name + " of " + message.size() + " fields:");
+        print("text", text, rounds);
+        print("frames", frames, rounds);
+    }
+
+    private static void roundTrip(List<String> message, boolean binary, long[] totals) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        long start = System.nanoTime();
+        if (binary) {
+            OutputStream out = new BufferedOutputStream(bytes);
+            Wire.write(out, message);
+            out.flush();
+        } else {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(bytes));
+            out.println(String.join(" ", message));
+            out.flush();
+        }
+        long encoded = System.nanoTime();
+
+        InputStream in = new ByteArrayInputStream(bytes.toByteArray());
+        String[] fields = binary
+            ? Wire.read(new BufferedInputStream(in))
+            : new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)).readLine().split(" ");
+        long decoded = System.nanoTime();
+
+        if (!Arrays.asList(fields).equals(message)) throw new AssertionError((binary ? "Frame" : "Line") + " didn't decode to what was sent");
+        totals[0] += encoded - start;
+        totals[1] += decoded - encoded;
+        totals[2] += bytes.size();
+    }
+
+    private static void print(String form, long[] totals, int rounds) {
+        System.out.printf("  %-6s %,12d bytes, encode %8.2fms, decode %8.2fms%n",
+            form, totals[2] / rounds, totals[0] / 1e6 / rounds, totals[1] / 1e6 / rounds);
+    }
+}